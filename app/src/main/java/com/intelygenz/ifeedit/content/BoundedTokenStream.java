@@ -0,0 +1,245 @@
+package com.intelygenz.ifeedit.content;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The bytes of a feed with its text and CDATA sections split into tokens of {@link #MAX_TOKEN_BYTES} at most,
+ * so the parser never builds a longer string, whatever the length of a field: empty CDATA sections are
+ * inserted in long text ("&lt;![CDATA[]]&gt;"), long CDATA sections are closed and opened again
+ * ("]]&gt;&lt;![CDATA["). The text is the same, only in more tokens (read one by one, see {@link ContentDownload}).
+ * Markup is recognized on bytes, which works for the encodings where it is made of single ASCII bytes (UTF-8,
+ * ISO-8859...); tokens are only split between characters. UTF-16 documents are passed unchanged.
+ */
+class BoundedTokenStream extends FilterInputStream {
+
+    /** Longest run of text or CDATA left in a single token. */
+    static final int MAX_TOKEN_BYTES = 8192;
+
+    BoundedTokenStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(mOne, 0, 1) == -1 ? -1 : mOne[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) return 0;
+        int written = 0;
+        while (written < count) {
+            if (mPending != null) {
+                int length = Math.min(mPending.length - mPendingIndex, count - written);
+                System.arraycopy(mPending, mPendingIndex, buffer, offset + written, length);
+                written += length;
+                mPendingIndex += length;
+                if (mPendingIndex == mPending.length) mPending = null;
+                continue;
+            }
+            if (mHeld >= 0) {
+                buffer[offset + written++] = (byte) mHeld;
+                mHeld = -1;
+                continue;
+            }
+            if (mInputIndex == mInputLength) {
+                // Whatever is already read is returned rather than waiting for more.
+                if (written > 0 && in.available() <= 0) break;
+                int length = in.read(mInput, 0, mInput.length);
+                if (length <= 0) break;
+                mInputIndex = 0;
+                mInputLength = length;
+            }
+            int b = mInput[mInputIndex++] & 0xff;
+            byte[] insertion = scan(b);
+            if (insertion != null) {
+                mPending = insertion;
+                mPendingIndex = 0;
+                mHeld = b;
+            } else {
+                buffer[offset + written++] = (byte) b;
+            }
+        }
+        return written == 0 ? -1 : written;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        // Through read(), so the markup is still followed.
+        long skipped = 0;
+        while (skipped < count) {
+            int length = read(mSkipBuffer, 0, (int) Math.min(mSkipBuffer.length, count - skipped));
+            if (length == -1) break;
+            skipped += length;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mPending != null ? mPending.length - mPendingIndex : 0) + (mHeld >= 0 ? 1 : 0)
+                + mInputLength - mInputIndex + in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+
+    /**
+     * Follows the markup one byte at a time.
+     * @return What to insert before the byte, null for nothing.
+     */
+    private byte[] scan(int b) {
+        byte[] insertion = null;
+        if (mPosition < 2) {
+            // Byte order marks and the first character of UTF-16.
+            if ((mPosition == 0 && (b == 0xfe || b == 0xff || b == 0)) || (mPosition == 1 && b == 0)) mState = PASS;
+            mPosition++;
+        }
+        switch (mState) {
+            case TEXT:
+                if (b == '<') {
+                    mState = MARKUP;
+                    mRun = 0;
+                    mInEntity = false;
+                    break;
+                }
+                // Not before the root element, where only white space may go.
+                if (mInRoot && mRun >= MAX_TOKEN_BYTES && !mInEntity && !isContinuation(b)) {
+                    insertion = EMPTY_CDATA;
+                    mRun = 0;
+                }
+                if (b == '&') mInEntity = true;
+                else if (b == ';') mInEntity = false;
+                mRun++;
+                break;
+            case MARKUP:
+                if (b == '!') {
+                    mState = DECLARATION_START;
+                    mMatched = 0;
+                } else if (b == '?') {
+                    mState = INSTRUCTION;
+                } else if (b == '>') {
+                    mState = TEXT;
+                } else {
+                    if (b != '/') mInRoot = true;
+                    mState = TAG;
+                    mQuote = 0;
+                }
+                break;
+            case TAG:
+                if (mQuote != 0) {
+                    if (b == mQuote) mQuote = 0;
+                } else if (b == '"' || b == '\'') {
+                    mQuote = b;
+                } else if (b == '>') {
+                    mState = TEXT;
+                }
+                break;
+            case DECLARATION_START:
+                if (mMatched == 0 && b == '-') {
+                    mState = COMMENT;
+                } else if (b == CDATA_START[mMatched]) {
+                    if (++mMatched == CDATA_START.length) {
+                        mState = CDATA;
+                        mRun = 0;
+                    }
+                } else {
+                    // A document type, possibly with declarations in brackets.
+                    mState = b == '>' ? TEXT : DECLARATION;
+                    mDepth = (mMatched > 0 ? 1 : 0) + (b == '[' ? 1 : 0);
+                }
+                break;
+            case DECLARATION:
+                if (b == '[') mDepth++;
+                else if (b == ']') mDepth--;
+                else if (b == '>' && mDepth <= 0) mState = TEXT;
+                break;
+            case INSTRUCTION:
+                if (b == '>' && mPrevious == '?') mState = TEXT;
+                break;
+            case COMMENT:
+                if (b == '>' && mPrevious == '-' && mBeforePrevious == '-') mState = TEXT;
+                break;
+            case CDATA:
+                if (b == '>' && mPrevious == ']' && mBeforePrevious == ']') {
+                    mState = TEXT;
+                    break;
+                }
+                // Never inside the "]]>" that ends the section.
+                if (mRun >= MAX_TOKEN_BYTES && b != ']' && mPrevious != ']' && !isContinuation(b)) {
+                    insertion = SPLIT_CDATA;
+                    mRun = 0;
+                }
+                mRun++;
+                break;
+            case PASS:
+                break;
+        }
+        mBeforePrevious = mPrevious;
+        mPrevious = b;
+        return insertion;
+    }
+
+    /**
+     * @return Whether the byte continues a UTF-8 character.
+     */
+    private static boolean isContinuation(int b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    private static final byte[] EMPTY_CDATA = ascii("<![CDATA[]]>");
+    private static final byte[] SPLIT_CDATA = ascii("]]><![CDATA[");
+    private static final byte[] CDATA_START = ascii("[CDATA[");
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) text.charAt(i);
+        return bytes;
+    }
+
+    /** Where the last byte is, see {@link #scan}. */
+    private static final int TEXT = 0;
+    private static final int MARKUP = 1;
+    private static final int TAG = 2;
+    private static final int DECLARATION_START = 3;
+    private static final int DECLARATION = 4;
+    private static final int INSTRUCTION = 5;
+    private static final int COMMENT = 6;
+    private static final int CDATA = 7;
+    private static final int PASS = 8;
+
+    private int mState = TEXT;
+    private int mPosition;
+    private int mPrevious;
+    private int mBeforePrevious;
+    private boolean mInRoot;
+    private boolean mInEntity;
+    private int mRun;
+    private int mQuote;
+    private int mMatched;
+    private int mDepth;
+
+    /** Bytes to return before the held one, and the held one (-1 for none). */
+    private byte[] mPending;
+    private int mPendingIndex;
+    private int mHeld = -1;
+
+    private final byte[] mInput = new byte[8192];
+    private int mInputIndex;
+    private int mInputLength;
+    private final byte[] mOne = new byte[1];
+    private final byte[] mSkipBuffer = new byte[512];
+}
@@ -0,0 +1,222 @@
+package com.intelygenz.ifeedit.content;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Gives every in-memory cache of the app its share of a single memory budget and takes memory
+ * back from them when the system runs low.
+ * The budget is a part of the heap the device gives the app (its memory class), so caches are
+ * big on big devices and small on low memory ones. When the system asks to trim memory, the
+ * caches are shrunk in priority order (the cheapest to rebuild first), more of them the higher the
+ * pressure, so the app gives memory back before it becomes a candidate to be killed.
+ * Caches keep counting their hits, misses and evictions, reported by {@link #dump()}.
+ */
+public class CacheRegistry implements ComponentCallbacks2 {
+
+    /**
+     * A cache that holds memory on behalf of the registry.
+     * Methods may be called from any thread.
+     */
+    public interface Cache {
+        /**
+         * @return Memory in bytes held now.
+         */
+        int getSizeBytes();
+
+        /**
+         * The memory the cache may hold from now on, evicting entries if it holds more already.
+         */
+        void setMaxBytes(int maxBytes);
+
+        /**
+         * Evicts entries until the cache holds no more than the given memory, keeping its maximum.
+         */
+        void trimTo(int maxBytes);
+
+        /**
+         * @return The counters of the cache.
+         */
+        Stats getStats();
+    }
+
+    /**
+     * Hit, miss and eviction counters of a cache.
+     */
+    public static class Stats {
+        public synchronized void hit() {
+            mHits++;
+        }
+
+        public synchronized void miss() {
+            mMisses++;
+        }
+
+        public synchronized void evicted() {
+            mEvictions++;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long lookups = mHits + mMisses;
+            return "hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions +
+                    (lookups > 0 ? " hitRate=" + (100 * mHits / lookups) + "%" : "");
+        }
+
+        private long mHits;
+        private long mMisses;
+        private long mEvictions;
+    }
+
+    /** Priorities: caches with a lower priority are trimmed first. */
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * Provides the application wide registry.
+     */
+    public static synchronized CacheRegistry getInstance(Context context) {
+        if (sInstance == null) sInstance = new CacheRegistry(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private CacheRegistry(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClassBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        boolean lowRam = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && activityManager.isLowRamDevice();
+        mBudgetBytes = (int) Math.min(memoryClassBytes / (lowRam ? LOW_RAM_BUDGET_FRACTION : BUDGET_FRACTION), Integer.MAX_VALUE);
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Adds a cache, giving it its share of the budget.
+     * @param name Identifies the cache in the stats.
+     * @param priority One of the PRIORITY constants.
+     * @param sharePercent Part of the budget given to the cache.
+     */
+    public synchronized void register(String name, int priority, int sharePercent, Cache cache) {
+        cache.setMaxBytes((int) ((long) mBudgetBytes * sharePercent / 100));
+        mEntries.add(new Entry(name, priority, cache));
+        // Stable: caches with the same priority keep the order they were registered in.
+        Collections.sort(mEntries, BY_PRIORITY);
+    }
+
+    /**
+     * Removes a cache, e.g. because its owner is destroyed.
+     */
+    public synchronized void unregister(Cache cache) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).cache == cache) {
+                mEntries.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Memory in bytes shared by all the caches.
+     */
+    public int getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Shrinks the caches for the given memory pressure:
+     * while the app runs with the system getting low on memory, the lowest priority caches are halved
+     * and then emptied; once the app is in the background (or the system is critical) all of them are emptied.
+     * @param level One of the ComponentCallbacks2 TRIM_MEMORY levels.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries);
+        }
+        int count = entries.size();
+        int emptied;
+        int halved;
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            emptied = count;
+            halved = 0;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            // Nothing is displayed (or memory is getting short): what only helps the UI be fast can go.
+            emptied = count / 2;
+            halved = count - emptied;
+        } else if (level == TRIM_MEMORY_RUNNING_MODERATE) {
+            emptied = 0;
+            halved = Math.min(1, count);
+        } else {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            Cache cache = entries.get(i).cache;
+            if (i < emptied) cache.trimTo(0);
+            else if (i < emptied + halved) cache.trimTo(cache.getSizeBytes() / 2);
+        }
+        Log.i("CacheRegistry", "Trimmed for level " + level + ": " + emptied + " emptied, " + halved + " halved");
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Writes the size and counters of every cache to the log.
+     * @return The same text written to the log.
+     */
+    public synchronized String dump() {
+        StringBuilder text = new StringBuilder("budget=").append(mBudgetBytes / 1024).append("KB\n");
+        for (Entry entry : mEntries) {
+            text.append(entry.name).append(": size=").append(entry.cache.getSizeBytes() / 1024).append("KB ")
+                    .append(entry.cache.getStats()).append('\n');
+        }
+        Log.i("CacheRegistry", text.toString());
+        return text.toString();
+    }
+
+    private static class Entry {
+        Entry(String name, int priority, Cache cache) {
+            this.name = name;
+            this.priority = priority;
+            this.cache = cache;
+        }
+
+        final String name;
+        final int priority;
+        final Cache cache;
+    }
+
+    private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.priority < b.priority ? -1 : (a.priority == b.priority ? 0 : 1);
+        }
+    };
+
+    /** Part of the memory class given to the caches. */
+    private static final int BUDGET_FRACTION = 4;
+    private static final int LOW_RAM_BUDGET_FRACTION = 8;
+
+    private static CacheRegistry sInstance;
+
+    /** Memory shared by all the caches. */
+    private final int mBudgetBytes;
+
+    /** The caches, lowest priority first. */
+    private final List<Entry> mEntries = new ArrayList<>();
+}
@@ -0,0 +1,29 @@
+package com.intelygenz.ifeedit.content;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections a content download reads from (the feed and its images).
+ * The download only sees this interface, so the network can be replaced by a stand-in (the tests
+ * generate feeds) to run syncs offline and under controlled conditions.
+ */
+public interface ConnectionFactory {
+
+    /**
+     * @param url The URL to read.
+     * @return The connection, not connected yet.
+     */
+    HttpURLConnection open(String url) throws IOException;
+
+    /**
+     * Connections to the real network.
+     */
+    ConnectionFactory NETWORK = new ConnectionFactory() {
+        @Override
+        public HttpURLConnection open(String url) throws IOException {
+            return (HttpURLConnection) new URL(url).openConnection();
+        }
+    };
+}
@@ -2,6 +2,11 @@ package com.intelygenz.ifeedit.content;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Color;
 import android.os.AsyncTask;
 import android.util.Log;
 import android.util.Xml;
@@ -12,12 +17,22 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Connects to an RSS URL extracting the channel's items and stores them in the internal database.
@@ -31,7 +46,7 @@ public class ContentDownload {
         /**
          * Called when the content download process has completed so that the channel items are
          * stored in the database.
-         * @param success Whether the process completed successfully, otherwise the database will not contain any items.
+         * @param success Whether the process completed successfully, otherwise only part of the new items (if any) were stored.
          */
         void onContentReady(boolean success);
     }
@@ -39,21 +54,64 @@ public class ContentDownload {
     /**
      * Initiates the download and storage process.
      * This call returns immediately.
+     * Prefer {@link SyncCoordinator} so the same feed is not downloaded several times at once.
      * @param rssUrl RSS URL when the feed XML file is located.
      * @param database The item database where downloaded content will persist.
-     * @param listener To receive the notification when process completes.
+     * @param listener To receive the notification when process completes (also when cancelled).
      */
     public void generateContent(Context context, String rssUrl, ItemStore database, Listener listener) {
         mContext = context;
         mListener = listener;
         mDatabase = database;
-
-        // Clean up database removing previous content. TODO: avoid removing previous content if this download process fails (preserve previous content at lest).
-        mDatabase.get().execSQL("DELETE FROM " + ItemStore.DB_TABLE_NAME);
-        mEntryId = 0;
+        mRssUrl = rssUrl;
+        mCompressDescriptions = ItemDescription.isCompressionEnabled(context);
+        mImageCache = new LocalImageCache(context);
+        mLimits = FieldLimits.fromPreferences(context);
+        mBodies = new ItemBodies(context);
+        if (mProfile == null) mProfile = SyncProfile.fromConnectivity(context);
+        Log.i("ContentDownload", "Sync profile: " + mProfile);
 
         // Initiate the process in the background.
-        (new RssXmlProcessor()).execute(rssUrl);
+        // Previous content is removed there, once the feed is reachable and any previous process has finished.
+        mTask = new RssXmlProcessor();
+        mTask.execute(rssUrl);
+    }
+
+    /**
+     * Replaces the network, e.g. by generated feeds to load test the sync offline.
+     * Must be called before {@link #generateContent}.
+     */
+    public void setConnectionFactory(ConnectionFactory connectionFactory) {
+        mConnectionFactory = connectionFactory;
+    }
+
+    /**
+     * Replaces the profile chosen from the current connection, e.g. to try the sync of a metered network.
+     * Must be called before {@link #generateContent}.
+     */
+    public void setProfile(SyncProfile profile) {
+        mProfile = profile;
+    }
+
+    /**
+     * Whether to show the progress to the user, not for syncs in the background. Shown by default.
+     */
+    public void setShowProgress(boolean showProgress) {
+        mShowProgress = showProgress;
+    }
+
+    /**
+     * Stops the process as soon as possible: open connections are closed and the parsing loop
+     * exits at the next item. The listener is notified with no success.
+     */
+    public void cancel() {
+        if (mTask == null) return;
+        mTask.cancel(false);
+        // Closing the connections from here makes blocked reads in the background thread fail immediately.
+        HttpURLConnection connection = mActiveConnection;
+        if (connection != null) connection.disconnect();
+        connection = mFeedConnection;
+        if (connection != null) connection.disconnect();
     }
 
     /** Used to display download progress. */
@@ -65,8 +123,69 @@ public class ContentDownload {
     /** The database provided to fill in with the downloaded content. */
     private ItemStore mDatabase;
 
-    /** Counter to provide the primary key of the database table in its "_id" field, needed by cursors. */
-    private int mEntryId;
+    /** The feed being downloaded, stored along with each item. */
+    private String mRssUrl;
+
+    /** Whether the descriptions are stored compressed, see {@link ItemDescription}. */
+    private boolean mCompressDescriptions;
+
+    /** Local copies of the images in the descriptions. */
+    private LocalImageCache mImageCache;
+
+    /** Lengths of the fields read from the feed, and the whole descriptions over their limit. */
+    private FieldLimits mLimits;
+    private ItemBodies mBodies;
+
+    /** What the sync downloads on the current connection. */
+    private SyncProfile mProfile;
+
+    /**
+     * Counter to provide the primary key of the database table in its "_id" field, needed by cursors.
+     * Continues after the highest id stored, so ids of the items kept from previous syncs do not change.
+     * Given when an item is parsed, so the copies found later in the same sync can refer to it.
+     */
+    private long mEntryId;
+
+    /** The background process, kept to be able to cancel it. */
+    private RssXmlProcessor mTask;
+
+    /** Whether the progress is shown to the user. */
+    private boolean mShowProgress = true;
+
+    /** Opens the connections to the feed and its images. */
+    private ConnectionFactory mConnectionFactory = ConnectionFactory.NETWORK;
+
+    /** The connection the background process is currently reading from (feed or image), if any. */
+    private volatile HttpURLConnection mActiveConnection;
+
+    /** The connection to the feed itself. */
+    private volatile HttpURLConnection mFeedConnection;
+
+    /**
+     * An item as it goes through the stages of the sync: parsed, fetched (image and clean description) and stored.
+     */
+    private static class ItemRecord {
+        long id;
+        String guid;
+        String title;
+        String link;
+        String description;
+        String imageUrl;
+        String pubDate;
+        /** The whole description, when it is longer than the stored one. */
+        String bodyFile;
+        /** See {@link LinkIdentity}. */
+        Long linkHash;
+        /** See {@link ImagePlaceholder}. */
+        ContentValues placeholder;
+        /** The id of the item this one is a copy of, null if it is not a copy. */
+        Long duplicateOf;
+        long timestamp;
+        byte[] imageBlob;
+    }
+
+    /** Marks the end of the items passed to a stage. */
+    private static final ItemRecord END = new ItemRecord();
 
     /**
      * Performs the process of downloading the RSS xml file, parse and store in database.
@@ -77,37 +196,114 @@ public class ContentDownload {
 
         @Override
         protected void onPreExecute() {
-            Toast.makeText(mContext, "Downloading content...", Toast.LENGTH_SHORT).show();
+            if (mShowProgress) Toast.makeText(mContext, "Downloading content...", Toast.LENGTH_SHORT).show();
         }
 
         @Override
         protected Boolean doInBackground(String... url) {
+            long start = System.currentTimeMillis();
             InputStream stream = null;
             try {
                 // Open the input stream that provides the content.
                 stream = downloadUrl(url[0]);
 
-                // Parse the xml file.
-                XmlPullParser parser = Xml.newPullParser();
-                parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-                parser.setInput(stream, null);
-                parser.nextTag();
-                readRss(parser);
+                // Previous content of this feed is kept: only new items are added to it.
+                // Items of other feeds (the feed URL has changed) are removed.
+                checkCancelled();
+                int removed = mDatabase.get().delete(ItemStore.DB_TABLE_NAME, ItemStore.DB_COL_FEED + " IS NOT ?", new String[] { mRssUrl });
+                if (removed > 0) {
+                    FirstScreenSnapshot.delete(mContext);
+                    // Their ids may be given to the new items.
+                    ItemStateStore.getInstance(mContext).clear();
+                    ItemProvider.notifyItemsChanged(mContext);
+                }
+                mEntryId = DatabaseUtils.longForQuery(mDatabase.get(), "SELECT IFNULL(MAX(" + ItemStore.DB_COL_ID + "), -1) + 1 FROM " + ItemStore.DB_TABLE_NAME, null);
+                readKnownItems();
+                mResuming = FeedScheduler.hasBacklog(mDatabase, mRssUrl);
+
+                // Parsing (in this thread), image downloads and database writes run at the same time,
+                // connected by bounded queues: a slow stage holds the previous ones back.
+                Thread fetcher = new Thread(new FetchStage(), "SyncFetcher");
+                Thread writer = new Thread(new WriteStage(), "SyncWriter");
+                fetcher.start();
+                writer.start();
+                try {
+                    // Parse the xml file.
+                    XmlPullParser parser = Xml.newPullParser();
+                    parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+                    // No token longer than a few KB, see readText.
+                    parser.setInput(new BoundedTokenStream(stream), null);
+                    parser.nextTag();
+                    readRss(parser);
+                    if (mStoppedEarly) {
+                        // The rest of the feed is known: drop the connection instead of reading it to the end.
+                        HttpURLConnection feedConnection = mFeedConnection;
+                        if (feedConnection != null) feedConnection.disconnect();
+                    }
+                    put(mFetchQueue, END);
+                } catch (IOException | XmlPullParserException e) {
+                    // The other stages stop too.
+                    mPipelineFailed = true;
+                    throw e;
+                } finally {
+                    join(fetcher);
+                    join(writer);
+                }
+                if (mPipelineFailed) throw new IOException("Failed to store the items of " + url[0]);
+
+                // Images left by syncs on metered or slow connections, now that the connection allows them.
+                if (mProfile.fillsDeferredImages()) fillDeferredImages();
+
+                // Keep the database within the configured limits now that new content has been added.
+                RetentionPolicy retention = RetentionPolicy.fromPreferences(mContext);
+                StoreCompaction compaction = new StoreCompaction(mDatabase, mBodies, retention);
+                compaction.run();
+                // One budget for everything: the local copies of the images get what the items leave.
+                if (retention.getMaxTotalBytes() > 0) mImageCache.trimTo(retention.getMaxTotalBytes() - compaction.getStoredBytes());
+                mBodies.deleteUnreferenced(mDatabase.get());
+                fillPlaceholders();
+                ItemProvider.notifyItemsChanged(mContext);
+
+                // What the app shows first at the next start up.
+                FirstScreenSnapshot.write(mContext, mDatabase);
+
+                // The next sync, as often as the feed changes.
+                FeedScheduler.onSynced(mContext, mDatabase, mRssUrl, mHints, mItemCount >= MAX_ITEMS_PER_SYNC);
+
+                // Throughput of the whole sync, to compare runs.
+                long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+                Log.i("ContentDownload", "Synced " + mItemCount + " items in " + elapsed + "ms (" + (mItemCount * 1000 / elapsed) + " items/s) from " + url[0]);
             } catch (IOException e) {
                 e.printStackTrace();
+                scheduleRetry();
                 return false;
             } catch (XmlPullParserException e) {
                 e.printStackTrace();
+                scheduleRetry();
                 return false;
             } finally {
                 if (stream != null) try { stream.close(); } catch (IOException e) { /* Give up. */ }
+                mActiveConnection = null;
+                mFeedConnection = null;
             }
             return true;
         }
 
+        /**
+         * Schedules the next sync after this one failed or was cancelled, so the feed is not left without one.
+         */
+        private void scheduleRetry() {
+            try {
+                if (isCancelled()) FeedScheduler.onSyncCancelled(mContext, mDatabase, mRssUrl);
+                else FeedScheduler.onSyncFailed(mContext, mDatabase, mRssUrl);
+            } catch (SQLException e) {
+                Log.i("ContentDownload", "Failed to schedule the next sync of " + mRssUrl);
+            }
+        }
+
         @Override
         protected void onProgressUpdate(Integer... itemCount) {
-            Toast.makeText(mContext, "Items loaded so far: " + itemCount[0], Toast.LENGTH_SHORT).show();
+            if (mShowProgress) Toast.makeText(mContext, "Items loaded so far: " + itemCount[0], Toast.LENGTH_SHORT).show();
         }
 
         @Override
@@ -116,18 +312,33 @@ public class ContentDownload {
             if (mListener != null) mListener.onContentReady(success);
         }
 
+        @Override
+        protected void onCancelled(Boolean success) {
+            // Whatever was stored before cancelling is incomplete.
+            if (mListener != null) mListener.onContentReady(false);
+        }
+
+        /**
+         * Aborts the process if it has been cancelled, so no more bandwidth or CPU is spent on it.
+         */
+        private void checkCancelled() throws InterruptedIOException {
+            if (isCancelled()) throw new InterruptedIOException("Content download cancelled");
+        }
+
         /**
          * Given a string representation of a URL, sets up a connection and gets an input stream.
          * @param urlString The URL whose content is about to be downloaded.
          * @return The content as an input stream ready to read.
          */
         private InputStream downloadUrl(String urlString) throws IOException {
-            URL url = new URL(urlString);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setReadTimeout(10000);
-            conn.setConnectTimeout(15000);
+            HttpURLConnection conn = mConnectionFactory.open(urlString);
+            conn.setReadTimeout(mProfile.getReadTimeoutMs());
+            conn.setConnectTimeout(mProfile.getConnectTimeoutMs());
             conn.setRequestMethod("GET");
             conn.setDoInput(true);
+            mActiveConnection = conn;
+            mFeedConnection = conn;
+            checkCancelled();
             conn.connect();
             return conn.getInputStream();
         }
@@ -141,31 +352,92 @@ public class ContentDownload {
                 if (parser.getEventType() != XmlPullParser.START_TAG) continue;
                 String name = parser.getName();
                 // Looking for the "channel" tag.
-                if (name.equals("channel")) readChannel(parser);
+                if (name.equals("channel")) {
+                    readChannel(parser);
+                    if (mStoppedEarly) return;
+                }
                 else skip(parser);
             }
         }
 
         /**
          * Processes one "channel" tag.
-         * The items inside will be processed and stored in database.
+         * The new items inside will be passed on to be stored in database. Feeds list the newest items
+         * first, so the processing stops once a run of items already stored is found, or once the
+         * maximum number of items per sync has been stored. The sync after one stopped by the maximum
+         * reads past the items already stored, to get the ones left behind.
          */
         private void readChannel(XmlPullParser parser) throws IOException, XmlPullParserException {
-            int itemCount = 0;
             parser.require(XmlPullParser.START_TAG, null, "channel");
             while (parser.next() != XmlPullParser.END_TAG) {
                 if (parser.getEventType() != XmlPullParser.START_TAG) continue;
                 String name = parser.getName();
                 // Looking for the first/next "item" tag.
+                switch (name) {
+                    // Hints on how often to read the feed again.
+                    case "ttl":
+                        mHints.setTtl(readText(parser));
+                        continue;
+                    case "skipHours":
+                        readSkip(parser, "hour");
+                        continue;
+                    case "skipDays":
+                        readSkip(parser, "day");
+                        continue;
+                    case "sy:updatePeriod":
+                        mHints.updatePeriod = readText(parser);
+                        continue;
+                    case "sy:updateFrequency":
+                        mHints.setUpdateFrequency(readText(parser));
+                        continue;
+                }
                 if (name.equals("item")) {
-                    readItem(parser);
-                    itemCount++;
-                    if (itemCount % 5 == 0) this.publishProgress(itemCount);
+                    checkCancelled();
+                    ItemRecord item;
+                    HotPathBudget.begin(HotPathBudget.PARSE_ITEM);
+                    try {
+                        item = readItem(parser);
+                    } finally {
+                        HotPathBudget.end();
+                    }
+                    if (item == null) {
+                        if (++mKnownRun >= KNOWN_RUN_TO_STOP && !mResuming) {
+                            mStoppedEarly = true;
+                            return;
+                        }
+                        continue;
+                    }
+                    mKnownRun = 0;
+                    mKnownGuids.add(item.guid);
+                    item.id = mEntryId++;
+                    put(mFetchQueue, item);
+                    mItemCount++;
+                    if (mItemCount % 5 == 0) this.publishProgress(mItemCount);
+                    if (mItemCount >= MAX_ITEMS_PER_SYNC) {
+                        mStoppedEarly = true;
+                        return;
+                    }
                 }
                 else skip(parser);
             }
         }
 
+        /**
+         * Processes one "skipHours" or "skipDays" tag, made of "hour" or "day" tags.
+         */
+        private void readSkip(XmlPullParser parser, String entry) throws IOException, XmlPullParserException {
+            while (parser.next() != XmlPullParser.END_TAG) {
+                if (parser.getEventType() != XmlPullParser.START_TAG) continue;
+                if (!parser.getName().equals(entry)) {
+                    skip(parser);
+                    continue;
+                }
+                String value = readText(parser);
+                if (entry.equals("hour")) mHints.addSkipHour(value);
+                else mHints.addSkipDay(value);
+            }
+        }
+
         /**
          * Helper method to go through a tag content that is useless for us.
          */
@@ -173,7 +445,8 @@ public class ContentDownload {
             if (parser.getEventType() != XmlPullParser.START_TAG) throw new IllegalStateException();
             int depth = 1;
             while (depth != 0) {
-                switch (parser.next()) {
+                // Token by token: next() would join all the text of the tag in one string.
+                switch (parser.nextToken()) {
                     case XmlPullParser.END_TAG:
                         depth--;
                         break;
@@ -185,15 +458,18 @@ public class ContentDownload {
         }
 
         /**
-         * Processes one "item" tag extracting its content and storing them in the database.
+         * Processes one "item" tag extracting its content.
+         * @return The item, null if it was already stored (and so it is skipped).
          */
-        private void readItem(XmlPullParser parser) throws XmlPullParserException, IOException {
+        private ItemRecord readItem(XmlPullParser parser) throws XmlPullParserException, IOException {
             parser.require(XmlPullParser.START_TAG, null, "item");
+            String guid = null;
             String title = null;
             String link = null;
             String description = null;
             String imageUrl = null;
             String pubDate = null;
+            String bodyFile = null;
             while (parser.next() != XmlPullParser.END_TAG) {
                 if (parser.getEventType() != XmlPullParser.START_TAG) continue;
                 String name = parser.getName();
@@ -206,6 +482,7 @@ public class ContentDownload {
                         break;
                     case "description":
                         description = readDescription(parser);
+                        bodyFile = mSpilledBody;
                         break;
                     case "image":
                         imageUrl = readImage(parser);
@@ -213,45 +490,182 @@ public class ContentDownload {
                     case "pubDate":
                         pubDate = readPubDate(parser);
                         break;
+                    case "guid":
+                        guid = readText(parser);
+                        break;
                     default:
                         skip(parser);
                         break;
                 }
             }
 
-            // Case of no image tag available. Try to extract an image URL from the description then.
-            if (imageUrl == null && description != null) {
-                int urlStart = description.indexOf("src=\"") + 5;
-                int urlStop = description.toLowerCase().substring(urlStart).indexOf(".jpg") + 4;
-                if (urlStop == 3) urlStop = description.toLowerCase().substring(urlStart).indexOf(".png") + 4;
-                if (urlStop == 3) urlStop = description.toLowerCase().substring(urlStart).indexOf(".jpeg") + 5;
-                imageUrl = description.substring(urlStart, urlStart + urlStop);
+            // Known items are skipped before spending anything (images) on them.
+            if (guid == null || guid.isEmpty()) guid = link != null ? link : title + " " + pubDate;
+            if (mKnownGuids.contains(guid) || (link != null && mKnownLinks.contains(link))) {
+                if (bodyFile != null) mBodies.delete(bodyFile);
+                return null;
             }
 
-            // Download the image (its content, not just the link) to be also stored in database.
-            // TODO: defer image download to avoid content download delay.
-            // TODO: scale image to an acceptable thumbnail.
-            byte[] imageBlob = null;
-            if (imageUrl != null) {
+            ItemRecord item = new ItemRecord();
+            item.guid = guid;
+            item.title = title;
+            item.link = link;
+            item.description = description;
+            item.imageUrl = imageUrl;
+            item.pubDate = pubDate;
+            item.bodyFile = bodyFile;
+            return item;
+        }
+
+        /**
+         * Downloads the images of the most recent items stored without them because their sync deferred them,
+         * a limited number every sync.
+         */
+        private void fillDeferredImages() throws InterruptedIOException {
+            SQLiteDatabase db = mDatabase.get();
+            Cursor cursor = db.query(ItemStore.DB_TABLE_NAME, new String[] { ItemStore.DB_COL_ID, ItemStore.DB_COL_IMAGE_URL },
+                    ItemStore.DB_COL_IMAGE_URL + " IS NOT NULL AND " + ItemStore.DB_COL_IMAGE_CONTENT + " IS NULL AND "
+                            + ItemStore.DB_COL_IMAGE_COLOR + " IS NULL AND " + ItemStore.ORIGINALS_ONLY,
+                    null, null, null, ItemStore.DB_COL_PUB_DATE + " DESC", String.valueOf(DEFERRED_FILL_LIMIT));
+            int filled = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    checkCancelled();
+                    String imageUrl = cursor.getString(1);
+                    byte[] imageBlob = downloadImage(imageUrl);
+                    ContentValues values = new ContentValues();
+                    if (imageBlob != null) {
+                        values.put(ItemStore.DB_COL_IMAGE_CONTENT, imageBlob);
+                        ImagePlaceholder.put(values, imageBlob);
+                        filled++;
+                    }
+                    // Images that cannot be downloaded or decoded are not tried again.
+                    if (!values.containsKey(ItemStore.DB_COL_IMAGE_COLOR)) values.put(ItemStore.DB_COL_IMAGE_COLOR, Color.TRANSPARENT);
+                    db.update(ItemStore.DB_TABLE_NAME, values, ItemStore.DB_COL_ID + " = " + cursor.getLong(0), null);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (filled > 0) Log.i("ContentDownload", "Downloaded " + filled + " deferred images");
+        }
+
+        /**
+         * Computes the image placeholders of some of the items stored before they existed, a few every sync.
+         */
+        private void fillPlaceholders() {
+            SQLiteDatabase db = mDatabase.get();
+            Cursor cursor = db.query(ItemStore.DB_TABLE_NAME, new String[] { ItemStore.DB_COL_ID, ItemStore.DB_COL_IMAGE_CONTENT },
+                    ItemStore.DB_COL_IMAGE_CONTENT + " IS NOT NULL AND " + ItemStore.DB_COL_IMAGE_COLOR + " IS NULL",
+                    null, null, null, null, String.valueOf(PLACEHOLDER_FILL_LIMIT));
+            try {
+                while (cursor.moveToNext() && !isCancelled()) {
+                    ContentValues values = new ContentValues();
+                    ImagePlaceholder.put(values, cursor.getBlob(1));
+                    // Images that cannot be decoded are not tried again.
+                    if (values.size() == 0) values.put(ItemStore.DB_COL_IMAGE_COLOR, Color.TRANSPARENT);
+                    db.update(ItemStore.DB_TABLE_NAME, values, ItemStore.DB_COL_ID + " = " + cursor.getLong(0), null);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Reads the guids of the items of the feed already stored, and the links of the ones identified by their link.
+         */
+        private void readKnownItems() {
+            mKnownGuids = new HashSet<>();
+            mKnownLinks = new HashSet<>();
+            Cursor cursor = mDatabase.get().query(ItemStore.DB_TABLE_NAME, new String[] { ItemStore.DB_COL_GUID, ItemStore.DB_COL_LINK },
+                    ItemStore.DB_COL_FEED + " = ?", new String[] { mRssUrl }, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String guid = cursor.getString(0);
+                    mKnownGuids.add(guid);
+                    // Items stored before the guids were read (version 5 of the database) took their link as guid.
+                    if (guid != null && guid.equals(cursor.getString(1))) mKnownLinks.add(guid);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Second stage: downloads the images of the parsed items and cleans their descriptions.
+         */
+        private class FetchStage implements Runnable {
+            @Override
+            public void run() {
                 try {
-                    InputStream imageStream = new URL(imageUrl).openConnection().getInputStream();
-                    int totalRead = 0;
-                    int readBytes;
-                    while ((readBytes = imageStream.read(mImageContent, totalRead, IMAGE_CHUNCK_SIZE)) != -1 && totalRead < MAX_IMAGE_CONTENT_SIZE) {
-                        totalRead += readBytes;
+                    ItemRecord item;
+                    while ((item = take(mFetchQueue)) != END) {
+                        fetch(item);
+                        put(mWriteQueue, item);
                     }
-                    imageBlob = new byte[totalRead];
-                    System.arraycopy(mImageContent, 0, imageBlob, 0, totalRead);
-                } catch (IOException e) {
-                    // This may be ok if the attempt to get an image URL from the description fails.
-                    Log.i("ContentDownload", "Failed to download image from " + imageUrl);
-                } catch (Exception e) {
-                    Log.i("ContentDownload", "Failed to download image from " + imageUrl);
+                    put(mWriteQueue, END);
+                } catch (InterruptedIOException e) {
+                    // Cancelled or another stage failed.
+                } catch (RuntimeException e) {
                     e.printStackTrace();
+                    mPipelineFailed = true;
+                }
+            }
+        }
+
+        /**
+         * Completes an item with its image and clean description, ready to be stored.
+         */
+        private void fetch(ItemRecord item) throws InterruptedIOException {
+            // A copy of an article already stored (e.g. the same article in a mirror feed) is just linked to it:
+            // stored without description or image, and never displayed.
+            item.linkHash = LinkIdentity.hash(item.link != null ? item.link : item.guid);
+            if (item.linkHash != null) {
+                item.duplicateOf = findOriginal(item.linkHash);
+                if (item.duplicateOf != null) {
+                    if (item.bodyFile != null) mBodies.delete(item.bodyFile);
+                    item.bodyFile = null;
+                    item.description = null;
+                    item.imageUrl = null;
+                    item.timestamp = parseTimestamp(item.pubDate);
+                    return;
                 }
+                mFetchedLinks.put(item.linkHash, item.id);
+            }
+
+            String description = item.description;
+            String imageUrl = item.imageUrl;
+            // Case of no image tag available. Try to extract an image URL from the description then.
+            if (imageUrl == null) imageUrl = HtmlSanitizer.findImage(description);
+
+            // Download the image (its content, not just the link) to be also stored in database.
+            // Over the limit of the profile, only the link is stored: the image is downloaded by a later sync.
+            // TODO: scale image to an acceptable thumbnail.
+            byte[] imageBlob = null;
+            if (imageUrl != null && mProfile.allowsImage(mImageDownloads)) {
+                mImageDownloads++;
+                imageBlob = downloadImage(imageUrl);
+            }
+            // What the list paints until the image is decoded.
+            if (imageBlob != null) {
+                item.placeholder = new ContentValues();
+                ImagePlaceholder.put(item.placeholder, imageBlob);
             }
 
-            // Convert date as received into long time-stamp.
+            // Scripts and trackers out, images copied locally. The item image is usually in the description too:
+            // it is not copied again, the detail view displays the one in the database.
+            description = HtmlSanitizer.sanitize(description, new DescriptionImages(imageBlob != null ? imageUrl : null));
+            checkCancelled();
+
+            item.description = description;
+            item.imageUrl = imageUrl;
+            item.imageBlob = imageBlob;
+            item.timestamp = parseTimestamp(item.pubDate);
+        }
+
+        /**
+         * Converts the date as received into a time-stamp, 0 if it cannot be parsed.
+         */
+        private long parseTimestamp(String pubDate) {
             long timestamp = 0;
             SimpleDateFormat formatter = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z", Locale.US);
             try {
@@ -260,17 +674,271 @@ public class ContentDownload {
             } catch (ParseException e) {
                 e.printStackTrace();
             }
+            return timestamp;
+        }
+
+        /**
+         * @param linkHash See {@link LinkIdentity}.
+         * @return The id of the item (not a copy itself) with the same link, stored or fetched in this sync; null if none.
+         */
+        private Long findOriginal(long linkHash) {
+            Long id = mFetchedLinks.get(linkHash);
+            if (id != null) return id;
+            Cursor cursor = mDatabase.get().query(ItemStore.DB_TABLE_NAME, new String[] { ItemStore.DB_COL_ID },
+                    ItemStore.DB_COL_LINK_HASH + " = ? AND " + ItemStore.ORIGINALS_ONLY, new String[] { String.valueOf(linkHash) },
+                    null, null, null, "1");
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Last stage: stores the items in the database, all the items waiting in a single transaction.
+         */
+        private class WriteStage implements Runnable {
+            @Override
+            public void run() {
+                List<ItemRecord> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+                int sinceNotified = 0;
+                // Ids of the items written since the last notification, given in increasing order by the parser.
+                long notifyFrom = -1;
+                long notifyTo = -1;
+                try {
+                    boolean done = false;
+                    while (!done) {
+                        batch.add(take(mWriteQueue));
+                        mWriteQueue.drainTo(batch, WRITE_BATCH_SIZE - batch.size());
+                        done = batch.get(batch.size() - 1) == END;
+                        if (done) batch.remove(batch.size() - 1);
+                        if (!batch.isEmpty()) {
+                            write(batch);
+                            if (notifyFrom < 0) notifyFrom = batch.get(0).id;
+                            notifyTo = batch.get(batch.size() - 1).id;
+                            sinceNotified += batch.size();
+                            batch.clear();
+                        }
+                        // Observers (the item list) display the new items as they arrive, reading only those.
+                        if (sinceNotified >= NOTIFY_BATCH_SIZE) {
+                            ItemProvider.notifyItemsInserted(mContext, notifyFrom, notifyTo);
+                            sinceNotified = 0;
+                            notifyFrom = -1;
+                        }
+                    }
+                } catch (InterruptedIOException e) {
+                    // Cancelled or another stage failed.
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    mPipelineFailed = true;
+                }
+            }
+        }
+
+        private void write(List<ItemRecord> batch) {
+            SQLiteDatabase db = mDatabase.get();
+            HotPathBudget.begin(HotPathBudget.STORE_ITEM);
+            long start = QueryProfiler.begin();
+            db.beginTransaction();
+            try {
+                for (ItemRecord item : batch) {
+                    db.insert(ItemStore.DB_TABLE_NAME, null, toValues(item));
+                    HotPathBudget.countInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                QueryProfiler.end(db, "INSERT INTO " + ItemStore.DB_TABLE_NAME, start, batch.size());
+                HotPathBudget.end(batch.size());
+            }
+            ItemStore.notifyContentChanged();
+        }
 
-            // Save the item content into database.
+        /**
+         * @return The values of the item content to save into database.
+         */
+        private ContentValues toValues(ItemRecord item) {
             ContentValues values = new ContentValues();
-            values.put(ItemStore.DB_COL_ID, mEntryId++);
-            values.put(ItemStore.DB_COL_TITLE, title);
-            values.put(ItemStore.DB_COL_LINK, link);
-            values.put(ItemStore.DB_COL_DESCRIPTION, description);
-            values.put(ItemStore.DB_COL_IMAGE_URL, imageUrl);
-            values.put(ItemStore.DB_COL_PUB_DATE, timestamp);
-            if (imageBlob != null) values.put(ItemStore.DB_COL_IMAGE_CONTENT, imageBlob);
-            mDatabase.get().insert(ItemStore.DB_TABLE_NAME, null, values);
+            values.put(ItemStore.DB_COL_ID, item.id);
+            values.put(ItemStore.DB_COL_TITLE, item.title);
+            values.put(ItemStore.DB_COL_LINK, item.link);
+            ItemDescription.put(values, item.description, mCompressDescriptions);
+            values.put(ItemStore.DB_COL_IMAGE_URL, item.imageUrl);
+            values.put(ItemStore.DB_COL_PUB_DATE, item.timestamp);
+            values.put(ItemStore.DB_COL_FEED, mRssUrl);
+            values.put(ItemStore.DB_COL_GUID, item.guid);
+            values.put(ItemStore.DB_COL_BODY_FILE, item.bodyFile);
+            values.put(ItemStore.DB_COL_LINK_HASH, item.linkHash);
+            if (item.duplicateOf != null) values.put(ItemStore.DB_COL_DUPLICATE_OF, item.duplicateOf);
+            if (item.imageBlob != null) values.put(ItemStore.DB_COL_IMAGE_CONTENT, item.imageBlob);
+            if (item.placeholder != null) values.putAll(item.placeholder);
+            return values;
+        }
+
+        /**
+         * Passes an item to the next stage, waiting while the stage has too many items to process.
+         */
+        private void put(BlockingQueue<ItemRecord> queue, ItemRecord item) throws InterruptedIOException {
+            try {
+                while (!queue.offer(item, QUEUE_POLL_MS, TimeUnit.MILLISECONDS)) checkAborted();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Sync interrupted");
+            }
+        }
+
+        /**
+         * Takes the next item passed by the previous stage, waiting for it.
+         */
+        private ItemRecord take(BlockingQueue<ItemRecord> queue) throws InterruptedIOException {
+            try {
+                ItemRecord item;
+                while ((item = queue.poll(QUEUE_POLL_MS, TimeUnit.MILLISECONDS)) == null) checkAborted();
+                return item;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Sync interrupted");
+            }
+        }
+
+        /**
+         * Stops a stage if the sync has been cancelled or another stage has failed.
+         */
+        private void checkAborted() throws InterruptedIOException {
+            checkCancelled();
+            if (mPipelineFailed) throw new InterruptedIOException("Sync failed");
+        }
+
+        private void join(Thread thread) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        /**
+         * Downloads the content of an image into a buffer of its size.
+         * @return The content, null if it could not be downloaded or it is larger than the profile allows.
+         */
+        private byte[] downloadImage(String imageUrl) throws InterruptedIOException {
+            int maxSize = mProfile.getMaxImageBytes();
+            HttpURLConnection imageConnection = null;
+            try {
+                imageConnection = openImage(imageUrl, maxSize);
+                if (imageConnection == null) return null;
+                int length = imageConnection.getContentLength();
+                InputStream imageStream = imageConnection.getInputStream();
+                // Sized from the declared length when there is one, grown up to the limit otherwise.
+                byte[] content = new byte[length >= 0 ? length : Math.min(INITIAL_IMAGE_BUFFER_SIZE, maxSize)];
+                int totalRead = 0;
+                int readBytes;
+                while (true) {
+                    if (totalRead == content.length) {
+                        if (length >= 0 || totalRead == maxSize) break;
+                        content = Arrays.copyOf(content, Math.min(content.length * 2, maxSize));
+                    }
+                    if ((readBytes = imageStream.read(content, totalRead, content.length - totalRead)) == -1) break;
+                    totalRead += readBytes;
+                    checkCancelled();
+                }
+                // More bytes than declared or allowed: dropped without reading the rest.
+                if (totalRead == content.length && imageStream.read() != -1) {
+                    Log.i("ContentDownload", "Image larger than " + (length >= 0 ? length : maxSize) + " bytes skipped: " + imageUrl);
+                    imageConnection.disconnect();
+                    return null;
+                }
+                imageStream.close();
+                // A truncated image is of no use.
+                if (length >= 0 && totalRead < length) return null;
+                return totalRead == content.length ? content : Arrays.copyOf(content, totalRead);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                // This may be ok if the attempt to get an image URL from the description fails.
+                Log.i("ContentDownload", "Failed to download image from " + imageUrl);
+            } catch (Exception e) {
+                Log.i("ContentDownload", "Failed to download image from " + imageUrl);
+                e.printStackTrace();
+            }
+            if (imageConnection != null) imageConnection.disconnect();
+            return null;
+        }
+
+        /**
+         * Downloads an image straight to its local copy, without holding it in memory.
+         * @return Whether it was stored, not if it could not be downloaded or it is larger than the profile allows.
+         */
+        private boolean copyImage(String imageUrl) throws InterruptedIOException {
+            int maxSize = mProfile.getMaxImageBytes();
+            HttpURLConnection imageConnection = null;
+            try {
+                imageConnection = openImage(imageUrl, maxSize);
+                if (imageConnection == null) return false;
+                InputStream imageStream = imageConnection.getInputStream();
+                if (mImageCache.put(imageUrl, imageStream, maxSize)) {
+                    imageStream.close();
+                    return true;
+                }
+                checkCancelled();
+                Log.i("ContentDownload", "Image not stored (larger than " + maxSize + " bytes?): " + imageUrl);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.i("ContentDownload", "Failed to download image from " + imageUrl);
+            }
+            // Not read to the end: the connection cannot be reused.
+            if (imageConnection != null) imageConnection.disconnect();
+            return false;
+        }
+
+        /**
+         * Connects to an image, unless its declared length is over the limit.
+         * @return The connection, ready to read the image; null if the image is too large.
+         */
+        private HttpURLConnection openImage(String imageUrl, int maxSize) throws IOException {
+            checkCancelled();
+            HttpURLConnection imageConnection = mConnectionFactory.open(imageUrl);
+            imageConnection.setReadTimeout(mProfile.getReadTimeoutMs());
+            imageConnection.setConnectTimeout(mProfile.getConnectTimeoutMs());
+            mActiveConnection = imageConnection;
+            int length = imageConnection.getContentLength();
+            if (length > maxSize) {
+                Log.i("ContentDownload", "Image of " + length + " bytes skipped: " + imageUrl);
+                imageConnection.disconnect();
+                return null;
+            }
+            return imageConnection;
+        }
+
+        /**
+         * Copies the images of one description not copied yet, as many as the profile allows. The description
+         * keeps the remote URLs: the detail view points them to the local copies still there when it is displayed.
+         */
+        private class DescriptionImages implements HtmlSanitizer.ImageResolver {
+            /**
+             * @param storedImageUrl The image of the item when it is stored in the database, not copied.
+             */
+            DescriptionImages(String storedImageUrl) {
+                mStoredImageUrl = storedImageUrl;
+            }
+
+            @Override
+            public String resolve(String imageUrl) {
+                if (imageUrl.equals(mStoredImageUrl) || mImageCache.getLocalUrl(imageUrl) != null
+                        || !mProfile.allowsImage(mImageDownloads) || isCancelled()) return null;
+                mImageDownloads++;
+                try {
+                    copyImage(imageUrl);
+                } catch (InterruptedIOException e) {
+                    // Cancelled, checked again right after the description.
+                }
+                return null;
+            }
+
+            private final String mStoredImageUrl;
         }
 
         /**
@@ -278,7 +946,7 @@ public class ContentDownload {
          */
         private String readTitle(XmlPullParser parser) throws IOException, XmlPullParserException {
             parser.require(XmlPullParser.START_TAG, null, "title");
-            String title = readText(parser);
+            String title = readText(parser, mLimits.getTitleChars(), false);
             parser.require(XmlPullParser.END_TAG, null, "title");
             return title;
         }
@@ -295,11 +963,16 @@ public class ContentDownload {
 
         /**
          * Processes one "description" tag.
+         * A description over its limit is truncated, and written whole to a file given in {@link #mSpilledBody}.
          */
         private String readDescription(XmlPullParser parser) throws IOException, XmlPullParserException {
             parser.require(XmlPullParser.START_TAG, null, "description");
-            String description = readText(parser);
+            String description = readText(parser, mLimits.getDescriptionChars(), true);
             parser.require(XmlPullParser.END_TAG, null, "description");
+            // No tag cut in half at the end.
+            if (mSpilledBody != null && description.lastIndexOf('<') > description.lastIndexOf('>')) {
+                description = description.substring(0, description.lastIndexOf('<'));
+            }
             return description;
         }
 
@@ -314,15 +987,63 @@ public class ContentDownload {
         }
 
         /**
-         * Extracts the text content of title, link and description.
+         * Extracts the text content of a tag, up to the length of the fields other than title and description.
          */
         private String readText(XmlPullParser parser) throws IOException, XmlPullParserException {
-            String result = "";
-            if (parser.next() == XmlPullParser.TEXT) {
-                result = parser.getText();
-                parser.nextTag();
+            return readText(parser, mLimits.getOtherChars(), false);
+        }
+
+        /**
+         * Extracts the text content of a tag token by token (text, CDATA sections and entities come
+         * apart), keeping no more than the given length. The parser reads the feed through a
+         * {@link BoundedTokenStream}, so no token is longer than a few KB either: what a feed puts in
+         * a tag never takes more memory than that and the limit, however long it is.
+         * @param spill Whether to write the whole text to a file if it is over the limit, see {@link #mSpilledBody}.
+         * @return The text, truncated to the limit. The parser is left at the end tag.
+         */
+        private String readText(XmlPullParser parser, int maxChars, boolean spill) throws IOException, XmlPullParserException {
+            StringBuilder text = new StringBuilder();
+            ItemBodies.Body body = null;
+            mSpilledBody = null;
+            try {
+                int event;
+                while ((event = parser.nextToken()) != XmlPullParser.END_TAG) {
+                    switch (event) {
+                        case XmlPullParser.TEXT:
+                        case XmlPullParser.CDSECT:
+                        case XmlPullParser.ENTITY_REF:
+                        case XmlPullParser.IGNORABLE_WHITESPACE:
+                            // Null for an entity the parser does not know.
+                            String chunk = parser.getText();
+                            if (chunk == null) break;
+                            int room = maxChars - text.length();
+                            if (body != null) {
+                                body.append(chunk);
+                            } else if (chunk.length() <= room) {
+                                text.append(chunk);
+                            } else {
+                                text.append(chunk, 0, Math.max(room, 0));
+                                if (spill) {
+                                    body = mBodies.create();
+                                    body.append(text);
+                                    body.append(chunk.substring(Math.max(room, 0)));
+                                }
+                            }
+                            break;
+                        case XmlPullParser.START_TAG:
+                            // Markup not escaped in the feed, not text.
+                            skip(parser);
+                            break;
+                        case XmlPullParser.END_DOCUMENT:
+                            throw new XmlPullParserException("Unexpected end of document");
+                    }
+                }
+                if (body != null) mSpilledBody = body.close();
+                body = null;
+            } finally {
+                if (body != null) body.discard();
             }
-            return result;
+            return text.toString();
         }
 
         /**
@@ -342,10 +1063,65 @@ public class ContentDownload {
             return imageUrl;
         }
 
-        private static final int MAX_IMAGE_CONTENT_SIZE = 1024 * 1024;
-        private static final int IMAGE_CHUNCK_SIZE = 1024;
+        /** Items of previous versions given an image placeholder per sync. */
+        private static final int PLACEHOLDER_FILL_LIMIT = 50;
+
+        /** Items stored between notifications to the content observers. */
+        private static final int NOTIFY_BATCH_SIZE = 20;
+
+        /** New items stored so far. */
+        private int mItemCount;
+
+        /** Ids of the items fetched in this sync (not stored yet) by link hash. Used by the fetch stage only. */
+        private final Map<Long, Long> mFetchedLinks = new HashMap<>();
+
+        /** The file of the last text read over its limit, null if it was within it. */
+        private String mSpilledBody;
+
+        /** What the channel says about how often to read it. */
+        private final FeedHints mHints = new FeedHints();
+
+        /** Items already stored found in a row, see {@link #readChannel}. */
+        private int mKnownRun;
+        private boolean mStoppedEarly;
+
+        /** Whether the previous sync stopped at {@link #MAX_ITEMS_PER_SYNC}, so a run of known items does not stop this one. */
+        private boolean mResuming;
+
+        /** The guids of the items of the feed stored or about to be, to skip them. Used by the parser only. */
+        private Set<String> mKnownGuids;
+
+        /** The links of the stored items identified by their link, which may also have a guid in the feed. Parser only. */
+        private Set<String> mKnownLinks;
+
+        /** Items between the stages. Bounded, so memory does not grow if a stage falls behind. */
+        private final BlockingQueue<ItemRecord> mFetchQueue = new ArrayBlockingQueue<>(FETCH_QUEUE_SIZE);
+        private final BlockingQueue<ItemRecord> mWriteQueue = new ArrayBlockingQueue<>(WRITE_QUEUE_SIZE);
+        private static final int FETCH_QUEUE_SIZE = 16;
+        private static final int WRITE_QUEUE_SIZE = 8;
+
+        /** Maximum items stored in one transaction. */
+        private static final int WRITE_BATCH_SIZE = 20;
+
+        /** How often a stage waiting on a queue checks whether the sync has been aborted. */
+        private static final long QUEUE_POLL_MS = 200;
+
+        /** Set when any stage fails, so all of them stop. */
+        private volatile boolean mPipelineFailed;
+
+        /** Known items in a row after which the rest of the feed is considered known. */
+        private static final int KNOWN_RUN_TO_STOP = 3;
+
+        /** Maximum new items stored by one sync, the rest are left for the next ones. */
+        private static final int MAX_ITEMS_PER_SYNC = 200;
+
+        /** Buffer an image of unknown length starts with, doubled as needed up to the limit of the profile. */
+        private static final int INITIAL_IMAGE_BUFFER_SIZE = 16 * 1024;
+
+        /** Deferred images downloaded by one sync at most, see {@link #fillDeferredImages}. */
+        private static final int DEFERRED_FILL_LIMIT = 50;
 
-        /** Reused temporary buffer where images are downloaded. */
-        private byte[] mImageContent = new byte[MAX_IMAGE_CONTENT_SIZE];
+        /** Images downloaded so far (item images and description images), limited by the profile. Fetch stage only. */
+        private int mImageDownloads;
     }
 }
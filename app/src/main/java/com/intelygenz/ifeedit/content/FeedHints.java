@@ -0,0 +1,101 @@
+package com.intelygenz.ifeedit.content;
+
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * What a feed says about how often it changes, from its channel elements:
+ * "ttl", "skipHours", "skipDays" and the syndication module "sy:updatePeriod" and "sy:updateFrequency".
+ * See http://www.rssboard.org/rss-specification and http://web.resource.org/rss/1.0/modules/syndication/
+ */
+public class FeedHints {
+
+    /** Minutes the feed may be cached, 0 if not given. */
+    int ttlMinutes;
+
+    /** Bit n set if the feed must not be read at hour n (GMT). */
+    int skipHours;
+
+    /** Bit n set if the feed must not be read on day n ({@link Calendar#DAY_OF_WEEK}, GMT). */
+    int skipDays;
+
+    /** "hourly", "daily", "weekly", "monthly" or "yearly", null if not given. */
+    String updatePeriod;
+
+    /** Times the feed is updated per period, 1 if not given. */
+    int updateFrequency = 1;
+
+    void addSkipHour(String hour) {
+        try {
+            int value = Integer.parseInt(hour.trim());
+            // Both 0-23 and 1-24 are in use, 24 being midnight.
+            if (value >= 0 && value <= 24) skipHours |= 1 << (value % 24);
+        } catch (NumberFormatException e) {
+            // Ignored, just a hint.
+        }
+    }
+
+    /**
+     * @param day The English name of the day ("Monday"), or its first three letters.
+     */
+    void addSkipDay(String day) {
+        String name = day.trim().toLowerCase(Locale.US);
+        if (name.length() < 3) return;
+        for (int i = 0; i < DAYS.length; i++) {
+            if (DAYS[i].equals(name) || DAYS[i].substring(0, 3).equals(name)) {
+                skipDays |= 1 << (Calendar.SUNDAY + i);
+                return;
+            }
+        }
+    }
+
+    void setTtl(String minutes) {
+        try {
+            ttlMinutes = Math.max(Integer.parseInt(minutes.trim()), 0);
+        } catch (NumberFormatException e) {
+            ttlMinutes = 0;
+        }
+    }
+
+    void setUpdateFrequency(String frequency) {
+        try {
+            updateFrequency = Math.max(Integer.parseInt(frequency.trim()), 1);
+        } catch (NumberFormatException e) {
+            updateFrequency = 1;
+        }
+    }
+
+    /**
+     * @return The shortest interval between reads the feed asks for, 0 if it asks for none.
+     */
+    long getMinIntervalMillis() {
+        long interval = ttlMinutes * MINUTE_MILLIS;
+        if (updatePeriod != null) {
+            long period;
+            switch (updatePeriod.trim().toLowerCase(Locale.US)) {
+                case "hourly":
+                    period = 60 * MINUTE_MILLIS;
+                    break;
+                case "weekly":
+                    period = 7 * 24 * 60 * MINUTE_MILLIS;
+                    break;
+                case "monthly":
+                    period = 30 * 24 * 60 * MINUTE_MILLIS;
+                    break;
+                case "yearly":
+                    period = 365 * 24 * 60 * MINUTE_MILLIS;
+                    break;
+                default:
+                    period = 24 * 60 * MINUTE_MILLIS;
+                    break;
+            }
+            interval = Math.max(interval, period / updateFrequency);
+        }
+        return interval;
+    }
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    /** Day names, in {@link Calendar#DAY_OF_WEEK} order from Sunday. */
+    private static final String[] DAYS = { "sunday", "monday", "tuesday", "wednesday", "thursday", "friday", "saturday" };
+}
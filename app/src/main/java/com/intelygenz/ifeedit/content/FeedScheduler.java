@@ -0,0 +1,178 @@
+package com.intelygenz.ifeedit.content;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Decides when each feed is read again, so feeds that change often are kept fresh while the ones
+ * that rarely do are not read for nothing.
+ * The interval is based on the time observed between the newest items (half of it, so a new item
+ * waits half its interval on average), never shorter than what the feed asks for in its hints,
+ * and the time is moved out of the hours and days the feed asks to be skipped.
+ * Every sync schedules the next one, whatever its outcome: failed syncs are retried later and later.
+ */
+public class FeedScheduler {
+
+    /**
+     * Records a completed sync of a feed and schedules the next one.
+     * Runs in a background thread (it queries the database).
+     * @param hints The hints found in the feed.
+     * @param backlog Whether the sync stopped at its limit of items, leaving new ones for the next sync.
+     */
+    static void onSynced(Context context, ItemStore database, String rssUrl, FeedHints hints, boolean backlog) {
+        long now = System.currentTimeMillis();
+        long next = nextSync(hints, observedIntervalMillis(database.get(), rssUrl), now);
+
+        ContentValues values = new ContentValues();
+        values.put(ItemStore.FEEDS_COL_URL, rssUrl);
+        values.put(ItemStore.FEEDS_COL_TTL, hints.ttlMinutes);
+        values.put(ItemStore.FEEDS_COL_SKIP_HOURS, hints.skipHours);
+        values.put(ItemStore.FEEDS_COL_SKIP_DAYS, hints.skipDays);
+        values.put(ItemStore.FEEDS_COL_UPDATE_PERIOD, hints.updatePeriod);
+        values.put(ItemStore.FEEDS_COL_UPDATE_FREQUENCY, hints.updateFrequency);
+        values.put(ItemStore.FEEDS_COL_LAST_SYNC, now);
+        values.put(ItemStore.FEEDS_COL_NEXT_SYNC, next);
+        values.put(ItemStore.FEEDS_COL_BACKLOG, backlog ? 1 : 0);
+        values.put(ItemStore.FEEDS_COL_FAILURES, 0);
+        database.get().insertWithOnConflict(ItemStore.FEEDS_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+        schedule(context, next);
+        Log.i("FeedScheduler", "Next sync of " + rssUrl + " in " + (next - now) / 60000 + " minutes");
+    }
+
+    /**
+     * Records a failed sync of a feed and schedules a retry, twice as far as the previous one
+     * (from {@link #MIN_INTERVAL_MILLIS} up to {@link #MAX_INTERVAL_MILLIS}).
+     * Runs in a background thread (it queries the database).
+     */
+    static void onSyncFailed(Context context, ItemStore database, String rssUrl) {
+        SQLiteDatabase db = database.get();
+        long now = System.currentTimeMillis();
+        int failures = (int) DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + ItemStore.FEEDS_COL_FAILURES + "), 0) + 1 FROM " +
+                ItemStore.FEEDS_TABLE_NAME + " WHERE " + ItemStore.FEEDS_COL_URL + " = ?", new String[] { rssUrl });
+        long next = now + retryIntervalMillis(failures);
+
+        ContentValues values = new ContentValues();
+        values.put(ItemStore.FEEDS_COL_FAILURES, failures);
+        values.put(ItemStore.FEEDS_COL_NEXT_SYNC, next);
+        if (db.update(ItemStore.FEEDS_TABLE_NAME, values, ItemStore.FEEDS_COL_URL + " = ?", new String[] { rssUrl }) == 0) {
+            values.put(ItemStore.FEEDS_COL_URL, rssUrl);
+            db.insert(ItemStore.FEEDS_TABLE_NAME, null, values);
+        }
+
+        schedule(context, next);
+        Log.i("FeedScheduler", "Sync of " + rssUrl + " failed " + failures + " times in a row, next in " + (next - now) / 60000 + " minutes");
+    }
+
+    /**
+     * Schedules the next sync of a feed after one was cancelled: the time planned before, or the shortest interval
+     * from now if that time has passed.
+     * Runs in a background thread (it queries the database).
+     */
+    static void onSyncCancelled(Context context, ItemStore database, String rssUrl) {
+        long next = DatabaseUtils.longForQuery(database.get(), "SELECT IFNULL(MAX(" + ItemStore.FEEDS_COL_NEXT_SYNC + "), 0) FROM " +
+                ItemStore.FEEDS_TABLE_NAME + " WHERE " + ItemStore.FEEDS_COL_URL + " = ?", new String[] { rssUrl });
+        long now = System.currentTimeMillis();
+        schedule(context, next > now ? next : now + MIN_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param failures Failed syncs in a row, 1 or more.
+     * @return The time to wait before the next attempt.
+     */
+    static long retryIntervalMillis(int failures) {
+        // Shifting further would overflow, the maximum is reached much earlier.
+        return Math.min(MIN_INTERVAL_MILLIS << Math.min(failures - 1, 16), MAX_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @return Whether the last sync of the feed left new items behind, see {@link #onSynced}.
+     */
+    static boolean hasBacklog(ItemStore database, String rssUrl) {
+        return DatabaseUtils.longForQuery(database.get(), "SELECT IFNULL(MAX(" + ItemStore.FEEDS_COL_BACKLOG + "), 0) FROM " +
+                ItemStore.FEEDS_TABLE_NAME + " WHERE " + ItemStore.FEEDS_COL_URL + " = ?", new String[] { rssUrl }) != 0;
+    }
+
+    /**
+     * Schedules again the next sync of a feed, e.g. after the device restarts (alarms are lost).
+     * Runs in a background thread (it queries the database).
+     */
+    static void reschedule(Context context, ItemStore database, String rssUrl) {
+        long next = DatabaseUtils.longForQuery(database.get(), "SELECT IFNULL(MAX(" + ItemStore.FEEDS_COL_NEXT_SYNC + "), 0) FROM " +
+                ItemStore.FEEDS_TABLE_NAME + " WHERE " + ItemStore.FEEDS_COL_URL + " = ?", new String[] { rssUrl });
+        // Never synced: the app syncs it when opened.
+        if (next > 0) schedule(context, Math.max(next, System.currentTimeMillis()));
+    }
+
+    /**
+     * @param observedInterval Average time between the newest items, 0 if unknown.
+     * @return The time of the next sync.
+     */
+    static long nextSync(FeedHints hints, long observedInterval, long now) {
+        long interval = observedInterval > 0 ? observedInterval / 2 : DEFAULT_INTERVAL_MILLIS;
+        interval = Math.max(interval, hints.getMinIntervalMillis());
+        interval = Math.min(Math.max(interval, MIN_INTERVAL_MILLIS), MAX_INTERVAL_MILLIS);
+
+        // Out of the hours and days to skip, moving forward an hour at a time (a week at most).
+        Calendar time = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        time.setTimeInMillis(now + interval);
+        for (int i = 0; i < 7 * 24; i++) {
+            boolean skipHour = (hints.skipHours & (1 << time.get(Calendar.HOUR_OF_DAY))) != 0;
+            boolean skipDay = (hints.skipDays & (1 << time.get(Calendar.DAY_OF_WEEK))) != 0;
+            if (!skipHour && !skipDay) break;
+            time.add(Calendar.HOUR_OF_DAY, 1);
+            time.set(Calendar.MINUTE, 0);
+        }
+        return time.getTimeInMillis();
+    }
+
+    /**
+     * @return The average time between the newest items of the feed, 0 if there are not enough items.
+     */
+    private static long observedIntervalMillis(SQLiteDatabase db, String rssUrl) {
+        Cursor cursor = db.query(ItemStore.DB_TABLE_NAME, new String[] { ItemStore.DB_COL_PUB_DATE },
+                ItemStore.DB_COL_FEED + " = ? AND " + ItemStore.DB_COL_PUB_DATE + " > 0", new String[] { rssUrl },
+                null, null, ItemStore.DB_COL_PUB_DATE + " DESC", String.valueOf(OBSERVED_ITEMS));
+        try {
+            if (cursor.getCount() < 2) return 0;
+            cursor.moveToFirst();
+            long newest = cursor.getLong(0);
+            cursor.moveToLast();
+            return (newest - cursor.getLong(0)) / (cursor.getCount() - 1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Sets the alarm that starts the next sync, replacing the previous one.
+     * Not exact (from KitKat), so the system can batch it with other wake ups.
+     */
+    private static void schedule(Context context, long time) {
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(context, FeedSyncReceiver.class).setAction(FeedSyncReceiver.ACTION_SYNC);
+        PendingIntent operation = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        alarms.set(AlarmManager.RTC, time, operation);
+    }
+
+    /** Number of newest items whose publication dates give the observed interval. */
+    private static final int OBSERVED_ITEMS = 10;
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final long MIN_INTERVAL_MILLIS = 15 * MINUTE_MILLIS;
+    private static final long MAX_INTERVAL_MILLIS = 24 * 60 * MINUTE_MILLIS;
+    private static final long DEFAULT_INTERVAL_MILLIS = 60 * MINUTE_MILLIS;
+
+    private FeedScheduler() {
+    }
+}
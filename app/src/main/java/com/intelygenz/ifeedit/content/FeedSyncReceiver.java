@@ -0,0 +1,40 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.AsyncTask;
+
+/**
+ * Syncs the configured feed when scheduled by {@link FeedScheduler} (in {@link FeedSyncService},
+ * which outlives the broadcast), and schedules it again when the device restarts.
+ */
+public class FeedSyncReceiver extends BroadcastReceiver {
+
+    static final String ACTION_SYNC = "com.intelygenz.ifeedit.action.SYNC_FEED";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            FeedSyncService.start(context);
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final String rssUrl = FeedSyncService.getFeedUrl(appContext);
+        // Keeps the process alive until the next sync is scheduled again, a single query.
+        final PendingResult result = goAsync();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                ItemStore database = new ItemStore(appContext);
+                try {
+                    FeedScheduler.reschedule(appContext, database, rssUrl);
+                } finally {
+                    database.close();
+                    result.finish();
+                }
+            }
+        });
+    }
+}
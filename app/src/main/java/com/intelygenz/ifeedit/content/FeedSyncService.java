@@ -0,0 +1,54 @@
+package com.intelygenz.ifeedit.content;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import android.preference.PreferenceManager;
+
+import com.intelygenz.ifeedit.R;
+
+/**
+ * Runs the scheduled syncs of the configured feed, see {@link FeedSyncReceiver}. A started service
+ * keeps the process alive for as long as the sync takes, a broadcast receiver only for a few seconds.
+ * It stops once no sync is in progress, whoever requested it.
+ */
+public class FeedSyncService extends Service {
+
+    /**
+     * Starts a sync of the configured feed in the background, unless it is already being synced.
+     */
+    static void start(Context context) {
+        context.startService(new Intent(context, FeedSyncService.class));
+    }
+
+    /**
+     * @return The feed configured in the settings.
+     */
+    static String getFeedUrl(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getString("settings_feed_url", context.getString(R.string.pref_default_feed_url));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The sync schedules the next one when done.
+        SyncCoordinator coordinator = SyncCoordinator.getInstance(this);
+        coordinator.requestSync(getFeedUrl(this), null, false);
+        coordinator.notifyWhenIdle(mStopWhenIdle);
+        // Killed meanwhile: the sync is retried when the next one was scheduled.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private final Runnable mStopWhenIdle = new Runnable() {
+        @Override
+        public void run() {
+            stopSelf();
+        }
+    };
+}
@@ -0,0 +1,67 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * Maximum length of the item fields read from a feed, applied while the feed is parsed so the
+ * memory taken by an item does not depend on what the publisher puts in it.
+ * Longer text is truncated; a description over its limit is also kept whole in a file (see
+ * {@link ItemBodies}) for the detail view.
+ */
+public class FieldLimits {
+
+    /** Preference key, see res/xml/pref_general.xml. */
+    public static final String PREF_MAX_DESCRIPTION_KB = "settings_max_description_kb";
+
+    /** Defaults used when the user has not configured the limits. */
+    public static final int DEFAULT_MAX_DESCRIPTION_KB = 64;
+
+    /**
+     * @param titleChars Maximum length of the titles.
+     * @param descriptionChars Maximum length of the descriptions stored in the database.
+     * @param otherChars Maximum length of any other field (links, guids, dates...).
+     */
+    public FieldLimits(int titleChars, int descriptionChars, int otherChars) {
+        mTitleChars = titleChars;
+        mDescriptionChars = descriptionChars;
+        mOtherChars = otherChars;
+    }
+
+    /**
+     * Reads the limits configured by the user in the settings.
+     */
+    public static FieldLimits fromPreferences(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int descriptionKb;
+        try {
+            descriptionKb = Integer.parseInt(prefs.getString(PREF_MAX_DESCRIPTION_KB, String.valueOf(DEFAULT_MAX_DESCRIPTION_KB)).trim());
+        } catch (NumberFormatException e) {
+            descriptionKb = DEFAULT_MAX_DESCRIPTION_KB;
+        }
+        // At least enough for the summary of the list.
+        descriptionKb = Math.max(descriptionKb, 1);
+        return new FieldLimits(TITLE_CHARS, descriptionKb * 1024, OTHER_CHARS);
+    }
+
+    public int getTitleChars() {
+        return mTitleChars;
+    }
+
+    public int getDescriptionChars() {
+        return mDescriptionChars;
+    }
+
+    public int getOtherChars() {
+        return mOtherChars;
+    }
+
+    /** Fixed limits, far above any legitimate value. */
+    private static final int TITLE_CHARS = 1024;
+    private static final int OTHER_CHARS = 4096;
+
+    private final int mTitleChars;
+    private final int mDescriptionChars;
+    private final int mOtherChars;
+}
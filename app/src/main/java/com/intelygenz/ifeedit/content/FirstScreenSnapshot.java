@@ -0,0 +1,173 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.text.Html;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small file holding exactly what the first screen of the item list displays (plain text title
+ * and summary plus a tiny thumbnail of the most recent items), so the app can show content at
+ * start up without opening the database.
+ * It is written by the content download after the database has been updated.
+ */
+public class FirstScreenSnapshot {
+
+    /** Number of items in the snapshot, enough to fill the screen of a tablet. */
+    public static final int ENTRY_COUNT = 8;
+
+    /**
+     * One item as displayed in the list.
+     */
+    public static class Entry {
+        public long id;
+        public long pubDate;
+        public String title;
+        public String summary;
+        /** JPEG encoded, null if the item has no image. */
+        public byte[] thumbnail;
+    }
+
+    /**
+     * Reads the snapshot. Small enough to be read from the main thread.
+     * @return The entries, most recent first, or null if there is no (valid) snapshot.
+     */
+    public static List<Entry> read(Context context) {
+        File file = getFile(context);
+        if (!file.exists()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return null;
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry();
+                entry.id = in.readLong();
+                entry.pubDate = in.readLong();
+                entry.title = in.readUTF();
+                entry.summary = in.readUTF();
+                int thumbnailLength = in.readInt();
+                if (thumbnailLength > 0) {
+                    entry.thumbnail = new byte[thumbnailLength];
+                    in.readFully(entry.thumbnail);
+                }
+                entries.add(entry);
+            }
+            return entries;
+        } catch (IOException e) {
+            Log.i("FirstScreenSnapshot", "Invalid snapshot: " + e.getMessage());
+            return null;
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException e) { /* Give up. */ }
+        }
+    }
+
+    /**
+     * Writes the snapshot with the most recent items in the database.
+     * It takes a while (thumbnails are generated), so it must run in a background thread.
+     * The previous snapshot is replaced atomically.
+     */
+    public static void write(Context context, ItemStore database) {
+        Cursor cursor = database.get().query(ItemStore.DB_TABLE_NAME,
+                new String[] { ItemStore.DB_COL_ID, ItemStore.DB_COL_PUB_DATE, ItemStore.DB_COL_TITLE, ItemStore.DB_COL_SUMMARY, ItemStore.DB_COL_IMAGE_CONTENT },
+                ItemStore.ORIGINALS_ONLY, null, null, null, ItemStore.DB_COL_PUB_DATE + " DESC", String.valueOf(ENTRY_COUNT));
+        File file = getFile(context);
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(cursor.getCount());
+            while (cursor.moveToNext()) {
+                out.writeLong(cursor.getLong(0));
+                out.writeLong(cursor.getLong(1));
+                out.writeUTF(plainText(cursor.getString(2)));
+                out.writeUTF(cursor.isNull(3) ? "" : cursor.getString(3));
+                byte[] thumbnail = thumbnail(cursor.getBlob(4));
+                out.writeInt(thumbnail != null ? thumbnail.length : 0);
+                if (thumbnail != null) out.write(thumbnail);
+            }
+            out.close();
+            out = null;
+            if (!temporary.renameTo(file)) Log.i("FirstScreenSnapshot", "Failed to replace snapshot");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            cursor.close();
+            if (out != null) try { out.close(); } catch (IOException e) { /* Give up. */ }
+            if (temporary.exists() && !temporary.delete()) Log.i("FirstScreenSnapshot", "Failed to delete " + temporary);
+        }
+    }
+
+    /**
+     * Removes the snapshot, to be done when the content it reflects is gone.
+     */
+    public static void delete(Context context) {
+        File file = getFile(context);
+        if (file.exists() && !file.delete()) Log.i("FirstScreenSnapshot", "Failed to delete " + file);
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Text as displayed, without HTML and short enough for the list.
+     */
+    private static String plainText(String html) {
+        if (html == null) return "";
+        String text = Html.fromHtml(html).toString().trim();
+        return text.length() > MAX_TEXT_LENGTH ? text.substring(0, MAX_TEXT_LENGTH) : text;
+    }
+
+    /**
+     * Scales the image down to a thumbnail, JPEG encoded.
+     * @return The thumbnail or null if there is no image or it cannot be decoded.
+     */
+    private static byte[] thumbnail(byte[] image) {
+        if (image == null) return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= THUMBNAIL_WIDTH) options.inSampleSize *= 2;
+        Bitmap decoded = BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (decoded == null) return null;
+
+        int height = Math.max(1, decoded.getHeight() * THUMBNAIL_WIDTH / decoded.getWidth());
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded, THUMBNAIL_WIDTH, height, true);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        scaled.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, encoded);
+        if (scaled != decoded) scaled.recycle();
+        decoded.recycle();
+        return encoded.toByteArray();
+    }
+
+    private static final String FILE_NAME = "first_screen.snapshot";
+    private static final int MAGIC = 0x49464653; // "IFFS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_TEXT_LENGTH = 300;
+    private static final int THUMBNAIL_WIDTH = 96;
+    private static final int THUMBNAIL_QUALITY = 60;
+
+    private FirstScreenSnapshot() {
+    }
+}
@@ -0,0 +1,176 @@
+package com.intelygenz.ifeedit.content;
+
+import android.util.Log;
+
+import com.intelygenz.ifeedit.BuildConfig;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Costs of the hot paths: database queries and inserts per operation (a list row bound, a feed item
+ * parsed, an item stored), counted in debug builds and written to the log by {@link #dump()}.
+ * The budgets of each path are asserted by the unit tests, which also measure the allocations (see
+ * {@link AllocationMeter}), so a change that adds an extra query to a hot path fails there, not in a
+ * profile later.
+ * Operations must be ended in the same thread they were begun.
+ */
+public class HotPathBudget {
+
+    /** Operation names. */
+    public static final String LIST_BIND = "ItemListAdapter.bind";
+    public static final String PARSE_ITEM = "ContentDownload.readItem";
+    public static final String STORE_ITEM = "ContentDownload.write";
+
+    /** Whether the costs are counted. */
+    public static final boolean ENABLED = BuildConfig.DEBUG;
+
+    /** Indexes of each total, see {@link #getTotals}. */
+    public static final int UNITS = 0;
+    public static final int QUERIES = 1;
+    public static final int INSERTS = 2;
+    public static final int ALLOCATED_BYTES = 3;
+
+    /**
+     * Measures the memory allocated by the current thread so far. Provided by the tests, the platform has no
+     * supported way to do it.
+     */
+    public interface AllocationMeter {
+        long getAllocatedBytes();
+    }
+
+    /**
+     * @param meter Measures the allocations of the operations begun from now on, null to stop measuring them.
+     */
+    public static void setAllocationMeter(AllocationMeter meter) {
+        sAllocationMeter = meter;
+    }
+
+    /**
+     * Starts measuring an operation.
+     */
+    public static void begin(String name) {
+        if (!ENABLED) return;
+        long[] counters = sCounters.get();
+        AllocationMeter meter = sAllocationMeter;
+        sFrames.get().push(new long[] { 0, counters[QUERIES], counters[INSERTS], meter != null ? meter.getAllocatedBytes() : -1 });
+        sNames.get().push(name);
+    }
+
+    /**
+     * Ends the last operation begun in this thread.
+     */
+    public static void end() {
+        end(1);
+    }
+
+    /**
+     * Ends the last operation begun in this thread, made of several units (e.g. items stored in a batch)
+     * so its cost is averaged per unit.
+     */
+    public static void end(int units) {
+        if (!ENABLED) return;
+        Deque<long[]> frames = sFrames.get();
+        if (frames.isEmpty()) return;
+        AllocationMeter meter = sAllocationMeter;
+        long allocated = meter != null ? meter.getAllocatedBytes() : -1;
+        long[] start = frames.pop();
+        long[] counters = sCounters.get();
+        record(sNames.get().pop(), units, counters[QUERIES] - start[QUERIES], counters[INSERTS] - start[INSERTS],
+                start[ALLOCATED_BYTES] >= 0 && allocated >= 0 ? allocated - start[ALLOCATED_BYTES] : 0);
+    }
+
+    /**
+     * To be called for each row inserted, SQLiteDatabase has no way to observe them.
+     */
+    public static void countInsert() {
+        if (ENABLED) sCounters.get()[INSERTS]++;
+    }
+
+    /**
+     * To be called for each query, by the cursor factory of the database (see {@link QueryProfiler}).
+     */
+    static void countQuery() {
+        if (ENABLED) sCounters.get()[QUERIES]++;
+    }
+
+    /**
+     * Writes the average costs of every operation to the log.
+     * @return The same text written to the log.
+     */
+    public static synchronized String dump() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : sTotals.entrySet()) {
+            long[] totals = entry.getValue();
+            text.append(entry.getKey()).append(": count=").append(totals[UNITS]);
+            if (totals[UNITS] > 0) {
+                text.append(" queries=").append((float) totals[QUERIES] / totals[UNITS]);
+                text.append(" inserts=").append((float) totals[INSERTS] / totals[UNITS]);
+                if (totals[ALLOCATED_BYTES] > 0) text.append(" allocated=").append(totals[ALLOCATED_BYTES] / totals[UNITS]);
+            }
+            text.append('\n');
+        }
+        Log.i("HotPathBudget", text.toString());
+        return text.toString();
+    }
+
+    /**
+     * @return The totals of an operation so far: units, queries, inserts and allocated bytes (see {@link #UNITS});
+     * null if it has not run.
+     */
+    public static synchronized long[] getTotals(String name) {
+        long[] totals = sTotals.get(name);
+        return totals != null ? totals.clone() : null;
+    }
+
+    /**
+     * Forgets the costs counted so far.
+     */
+    public static synchronized void reset() {
+        sTotals.clear();
+    }
+
+    private static synchronized void record(String name, int units, long queries, long inserts, long allocatedBytes) {
+        long[] totals = sTotals.get(name);
+        if (totals == null) {
+            totals = new long[4];
+            sTotals.put(name, totals);
+        }
+        totals[UNITS] += units;
+        totals[QUERIES] += queries;
+        totals[INSERTS] += inserts;
+        totals[ALLOCATED_BYTES] += allocatedBytes;
+    }
+
+    private static volatile AllocationMeter sAllocationMeter;
+
+    /** Totals of every operation, see {@link #getTotals}. */
+    private static final Map<String, long[]> sTotals = new LinkedHashMap<>();
+
+    /** Queries and inserts made by each thread so far, at the same indexes as the totals. */
+    private static final ThreadLocal<long[]> sCounters = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[3];
+        }
+    };
+
+    /** Counter values at the start and names of the operations open in each thread. */
+    private static final ThreadLocal<Deque<long[]>> sFrames = new ThreadLocal<Deque<long[]>>() {
+        @Override
+        protected Deque<long[]> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+    private static final ThreadLocal<Deque<String>> sNames = new ThreadLocal<Deque<String>>() {
+        @Override
+        protected Deque<String> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    private HotPathBudget() {
+    }
+}
@@ -0,0 +1,154 @@
+package com.intelygenz.ifeedit.content;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cleans the HTML of the item descriptions when they are stored: scripts, embedded objects,
+ * event handlers and tracking pixels are removed, and images are pointed to their local copies.
+ * Not a full HTML parser: the web view displaying the result runs no JavaScript anyway, this just
+ * keeps it from reaching the network for content the user does not see.
+ */
+public class HtmlSanitizer {
+
+    /**
+     * Provides the local copies of the images.
+     */
+    public interface ImageResolver {
+        /**
+         * @param imageUrl The source of an image in the description.
+         * @return The URL of its local copy, null to keep the remote one.
+         */
+        String resolve(String imageUrl);
+    }
+
+    /**
+     * @param html A description as received in the feed.
+     * @param resolver Provides the local copies of the images, may be null.
+     * @return The cleaned description, null if it was null.
+     */
+    public static String sanitize(String html, ImageResolver resolver) {
+        if (html == null) return null;
+        String clean = REMOVED_ELEMENTS.matcher(html).replaceAll("");
+        clean = REMOVED_TAGS.matcher(clean).replaceAll("");
+        clean = EVENT_HANDLERS.matcher(clean).replaceAll("");
+        clean = SCRIPT_URLS.matcher(clean).replaceAll("$1=\"#\"");
+
+        Matcher images = IMAGE_TAG.matcher(clean);
+        StringBuffer out = new StringBuffer(clean.length());
+        while (images.find()) {
+            images.appendReplacement(out, Matcher.quoteReplacement(rewriteImage(images.group(), resolver)));
+        }
+        images.appendTail(out);
+        return out.toString();
+    }
+
+    /**
+     * @param html A description as received in the feed, may be null.
+     * @return The source of its first image that is not a tracking pixel, null if there is none.
+     */
+    public static String findImage(String html) {
+        if (html == null) return null;
+        Matcher images = IMAGE_TAG.matcher(html);
+        while (images.find()) {
+            String tag = images.group();
+            String src = attribute(tag, SRC);
+            if (src != null && !src.trim().isEmpty() && !isTrackingPixel(tag, src)) return src.trim();
+        }
+        return null;
+    }
+
+    /**
+     * Wraps a sanitized description in a page that fits the screen width: images and other media
+     * are scaled down to the width instead of making the page scroll sideways.
+     */
+    public static String toDisplayPage(String html) {
+        return "<html><head>" +
+                "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">" +
+                "<style>" +
+                "body{margin:8px;word-wrap:break-word;}" +
+                "img,video,iframe,table{max-width:100%;height:auto;}" +
+                "pre{white-space:pre-wrap;}" +
+                "</style></head><body>" + (html != null ? html : "") + "</body></html>";
+    }
+
+    /**
+     * @return The image tag pointing to the local copy, or an empty string if it is a tracking pixel.
+     */
+    private static String rewriteImage(String tag, ImageResolver resolver) {
+        String src = attribute(tag, SRC);
+        if (src == null || isTrackingPixel(tag, src)) return "";
+        String local = resolver != null ? resolver.resolve(src) : null;
+        if (local == null) return tag;
+        Matcher srcAttribute = SRC.matcher(tag);
+        if (!srcAttribute.find()) return tag;
+        // Responsive variants would be fetched from the network, the local copy is the only source.
+        String rewritten = tag.substring(0, srcAttribute.start()) + " src=\"" + local + "\"" + tag.substring(srcAttribute.end());
+        return SRCSET.matcher(rewritten).replaceAll("");
+    }
+
+    /**
+     * Tracking pixels are 1x1 (or hidden) images, or images from known feed statistics services.
+     */
+    private static boolean isTrackingPixel(String tag, String src) {
+        String width = attribute(tag, WIDTH);
+        String height = attribute(tag, HEIGHT);
+        if (isTiny(width) || isTiny(height)) return true;
+        String url = src.toLowerCase(Locale.US);
+        for (String tracker : TRACKERS) {
+            if (url.contains(tracker)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isTiny(String size) {
+        if (size == null) return false;
+        String digits = size.trim().replace("px", "");
+        return digits.equals("0") || digits.equals("1");
+    }
+
+    private static String attribute(String tag, Pattern attribute) {
+        Matcher matcher = attribute.matcher(tag);
+        if (!matcher.find()) return null;
+        for (int group = 2; group <= 4; group++) {
+            if (matcher.group(group) != null) return matcher.group(group);
+        }
+        return null;
+    }
+
+    private static Pattern attributePattern(String name) {
+        return Pattern.compile("\\s" + name + "\\s*=\\s*(\"([^\"]*)\"|'([^']*)'|([^\\s>]+))", Pattern.CASE_INSENSITIVE);
+    }
+
+    /** Elements removed along with their content. */
+    private static final Pattern REMOVED_ELEMENTS = Pattern.compile(
+            "<(script|style|iframe|object|noscript)\\b[^>]*>.*?</\\1\\s*>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /** Tags removed on their own (no content, or left unclosed). */
+    private static final Pattern REMOVED_TAGS = Pattern.compile(
+            "</?(script|iframe|object|embed|link|meta|base|form)\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern EVENT_HANDLERS = Pattern.compile(
+            "\\son[a-z]+\\s*=\\s*(\"[^\"]*\"|'[^']*'|[^\\s>]+)", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern SCRIPT_URLS = Pattern.compile(
+            "(href|src)\\s*=\\s*[\"']?\\s*javascript:[^\"'\\s>]*[\"']?", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern IMAGE_TAG = Pattern.compile("<img\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+
+    /** Image attributes, the value is in the group 2, 3 or 4 depending on the quotes. */
+    private static final Pattern SRC = attributePattern("src");
+    private static final Pattern SRCSET = attributePattern("srcset");
+    private static final Pattern WIDTH = attributePattern("width");
+    private static final Pattern HEIGHT = attributePattern("height");
+
+    /** URL parts of the usual feed statistics services. */
+    private static final String[] TRACKERS = new String[] {
+            "feeds.feedburner.com/~ff/", "stats.wordpress.com", "pixel.wp.com",
+            "doubleclick.net", "google-analytics.com", "pixel.quantserve.com", "/~r/", "feedsportal.com/c/"
+    };
+
+    private HtmlSanitizer() {
+    }
+}
@@ -0,0 +1,109 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+/**
+ * What the list paints for an item image until the image itself is decoded: its dominant color
+ * and a tiny preview of {@link #PREVIEW_SIZE} x {@link #PREVIEW_SIZE} pixels (3 bytes each),
+ * computed once when the image is stored so displaying them takes no decode at all.
+ */
+public class ImagePlaceholder {
+
+    /** Width and height of the preview, in pixels. */
+    public static final int PREVIEW_SIZE = 4;
+
+    /**
+     * Puts the placeholder of an image in the values of an item to store.
+     * Nothing is put if the image cannot be decoded.
+     */
+    public static void put(ContentValues values, byte[] image) {
+        Bitmap sample = decodeSample(image);
+        if (sample == null) return;
+        values.put(ItemStore.DB_COL_IMAGE_COLOR, dominantColor(sample));
+        Bitmap preview = Bitmap.createScaledBitmap(sample, PREVIEW_SIZE, PREVIEW_SIZE, true);
+        values.put(ItemStore.DB_COL_IMAGE_PREVIEW, toRgb(preview));
+        if (preview != sample) preview.recycle();
+        sample.recycle();
+    }
+
+    /**
+     * Expands a stored preview to colors, to be set on a {@link #PREVIEW_SIZE} square bitmap.
+     * @param pixels Receives the colors, at least PREVIEW_SIZE * PREVIEW_SIZE of them.
+     * @return Whether the preview is valid.
+     */
+    public static boolean toPixels(byte[] preview, int[] pixels) {
+        if (preview == null || preview.length != PREVIEW_SIZE * PREVIEW_SIZE * 3) return false;
+        for (int i = 0; i < PREVIEW_SIZE * PREVIEW_SIZE; i++) {
+            pixels[i] = Color.rgb(preview[i * 3] & 0xff, preview[i * 3 + 1] & 0xff, preview[i * 3 + 2] & 0xff);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the image subsampled to a few dozen pixels wide, all that is needed here.
+     */
+    private static Bitmap decodeSample(byte[] image) {
+        if (image == null) return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        int sampleSize = 1;
+        while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2) >= SAMPLE_SIZE) sampleSize *= 2;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return BitmapFactory.decodeByteArray(image, 0, image.length, options);
+    }
+
+    /**
+     * @return The average color of the most common colors in the image: pixels are grouped by color
+     *         (4 bits per channel) and the biggest group wins.
+     */
+    private static int dominantColor(Bitmap sample) {
+        int width = sample.getWidth();
+        int height = sample.getHeight();
+        int[] pixels = new int[width * height];
+        sample.getPixels(pixels, 0, width, 0, 0, width, height);
+        int[] counts = new int[4096];
+        for (int pixel : pixels) counts[bucket(pixel)]++;
+        int best = 0;
+        for (int i = 1; i < counts.length; i++) if (counts[i] > counts[best]) best = i;
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int pixel : pixels) {
+            if (bucket(pixel) != best) continue;
+            red += Color.red(pixel);
+            green += Color.green(pixel);
+            blue += Color.blue(pixel);
+        }
+        int count = counts[best];
+        return Color.rgb((int) (red / count), (int) (green / count), (int) (blue / count));
+    }
+
+    private static int bucket(int pixel) {
+        return ((Color.red(pixel) >> 4) << 8) | ((Color.green(pixel) >> 4) << 4) | (Color.blue(pixel) >> 4);
+    }
+
+    private static byte[] toRgb(Bitmap preview) {
+        int[] pixels = new int[PREVIEW_SIZE * PREVIEW_SIZE];
+        preview.getPixels(pixels, 0, PREVIEW_SIZE, 0, 0, PREVIEW_SIZE, PREVIEW_SIZE);
+        byte[] rgb = new byte[pixels.length * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            rgb[i * 3] = (byte) Color.red(pixels[i]);
+            rgb[i * 3 + 1] = (byte) Color.green(pixels[i]);
+            rgb[i * 3 + 2] = (byte) Color.blue(pixels[i]);
+        }
+        return rgb;
+    }
+
+    /** Smallest side of the subsampled image the placeholder is computed from. */
+    private static final int SAMPLE_SIZE = 32;
+
+    private ImagePlaceholder() {
+    }
+}
@@ -0,0 +1,146 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Whole descriptions of the items whose description is longer than the limit stored in the
+ * database (see {@link FieldLimits}), written while the feed is parsed and read only by the detail
+ * view. Files are referenced by name from {@link ItemStore#DB_COL_BODY_FILE}.
+ */
+public class ItemBodies {
+
+    public ItemBodies(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * A body being written.
+     */
+    public static class Body {
+        Body(File file) throws IOException {
+            mFile = file;
+            mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        }
+
+        public void append(CharSequence text) throws IOException {
+            mWriter.append(text);
+        }
+
+        /**
+         * @return The name the body is read by.
+         */
+        public String close() throws IOException {
+            mWriter.close();
+            return mFile.getName();
+        }
+
+        /**
+         * Gives up the body, e.g. because its item is not stored.
+         */
+        public void discard() {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                // Deleted anyway.
+            }
+            if (!mFile.delete()) Log.i("ItemBodies", "Failed to delete " + mFile);
+        }
+
+        private final File mFile;
+        private final Writer mWriter;
+    }
+
+    /**
+     * Starts writing a new body.
+     */
+    public Body create() throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) throw new IOException("Failed to create " + mDirectory);
+        return new Body(File.createTempFile(FILE_PREFIX, FILE_SUFFIX, mDirectory));
+    }
+
+    /**
+     * @param name The name given when the body was written.
+     * @return The body, null if it no longer exists.
+     */
+    public String read(String name) {
+        File file = new File(mDirectory, name);
+        if (!file.exists()) return null;
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            StringBuilder text = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE));
+            char[] buffer = new char[BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) != -1) text.append(buffer, 0, read);
+            return text.toString();
+        } catch (IOException e) {
+            Log.i("ItemBodies", "Failed to read " + file);
+            return null;
+        } finally {
+            if (reader != null) try { reader.close(); } catch (IOException e) { /* Give up. */ }
+        }
+    }
+
+    /**
+     * @param name The name given when the body was written.
+     */
+    public void delete(String name) {
+        File file = new File(mDirectory, name);
+        if (file.exists() && !file.delete()) Log.i("ItemBodies", "Failed to delete " + file);
+    }
+
+    /**
+     * @return The size in bytes of every body on disk, by name.
+     */
+    public Map<String, Long> getSizes() {
+        Map<String, Long> sizes = new HashMap<>();
+        File[] files = mDirectory.listFiles();
+        if (files == null) return sizes;
+        for (File file : files) sizes.put(file.getName(), file.length());
+        return sizes;
+    }
+
+    /**
+     * Deletes the bodies no stored item refers to (their items were removed, or never stored).
+     * Must not run while a sync is writing bodies.
+     */
+    public void deleteUnreferenced(SQLiteDatabase db) {
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length == 0) return;
+        Set<String> referenced = new HashSet<>();
+        Cursor cursor = db.query(ItemStore.DB_TABLE_NAME, new String[] { ItemStore.DB_COL_BODY_FILE },
+                ItemStore.DB_COL_BODY_FILE + " IS NOT NULL", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) referenced.add(cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && !file.delete()) Log.i("ItemBodies", "Failed to delete " + file);
+        }
+    }
+
+    private static final String DIRECTORY_NAME = "item_bodies";
+    private static final String FILE_PREFIX = "body";
+    private static final String FILE_SUFFIX = ".html";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mDirectory;
+}
@@ -0,0 +1,121 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores the description of the items, the biggest text in the database, compressed with deflate
+ * when it is worth it. The list displays the summary column instead, computed when the item is
+ * stored, so only the detail of an item pays for decompressing its description.
+ */
+public class ItemDescription {
+
+    /** Preference key to compress the descriptions, see res/xml/pref_general.xml. */
+    public static final String PREF_COMPRESS = "settings_compress_descriptions";
+
+    /** Values of {@link ItemStore#DB_COL_DESCRIPTION_ENCODING}. */
+    public static final int ENCODING_PLAIN = 0;
+    public static final int ENCODING_DEFLATE = 1;
+
+    /**
+     * @return Whether the descriptions of new items are stored compressed.
+     */
+    public static boolean isCompressionEnabled(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(PREF_COMPRESS, true);
+    }
+
+    /**
+     * Puts the description and its summary in the values of an item to store.
+     * @param compress Whether to store the description compressed (if it gets smaller).
+     */
+    public static void put(ContentValues values, String description, boolean compress) {
+        values.put(ItemStore.DB_COL_SUMMARY, ItemSummary.fromDescription(description));
+        byte[] plain = compress && description != null && description.length() >= MIN_COMPRESSED_LENGTH ? toUtf8(description) : null;
+        byte[] compressed = plain != null ? deflate(plain) : null;
+        // The text is stored as UTF-8 too, so that is the size to beat.
+        if (compressed != null && compressed.length < plain.length) {
+            values.put(ItemStore.DB_COL_DESCRIPTION, compressed);
+            values.put(ItemStore.DB_COL_DESCRIPTION_ENCODING, ENCODING_DEFLATE);
+        } else {
+            values.put(ItemStore.DB_COL_DESCRIPTION, description);
+            values.put(ItemStore.DB_COL_DESCRIPTION_ENCODING, ENCODING_PLAIN);
+        }
+    }
+
+    /**
+     * Reads the description of the item at the current position of the cursor, decompressing it if needed.
+     * The cursor must include the description and encoding columns.
+     * @return The description, null if there is none or it could not be decompressed.
+     */
+    public static String read(Cursor cursor) {
+        int column = cursor.getColumnIndex(ItemStore.DB_COL_DESCRIPTION);
+        int encoding = cursor.getInt(cursor.getColumnIndex(ItemStore.DB_COL_DESCRIPTION_ENCODING));
+        if (cursor.isNull(column)) return null;
+        if (encoding != ENCODING_DEFLATE) return cursor.getString(column);
+        return inflate(cursor.getBlob(column));
+    }
+
+    static byte[] deflate(String text) {
+        byte[] data = toUtf8(text);
+        return data != null ? deflate(data) : null;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] toUtf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    static String inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                out.write(buffer, 0, inflated);
+            }
+            return out.toString("UTF-8");
+        } catch (DataFormatException | UnsupportedEncodingException e) {
+            Log.i("ItemDescription", "Failed to decompress a description");
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Shorter descriptions are stored as they are, compression would hardly save anything. */
+    private static final int MIN_COMPRESSED_LENGTH = 256;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private ItemDescription() {
+    }
+}
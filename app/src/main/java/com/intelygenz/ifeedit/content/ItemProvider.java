@@ -0,0 +1,202 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.List;
+
+/**
+ * Exposes the items in the database through content URIs and notifies the observers of those URIs
+ * whenever items are inserted, updated or deleted.
+ * Writers using {@link ItemStore} directly (to batch their changes) must call
+ * {@link #notifyItemsChanged(Context)}, {@link #notifyItemsInserted} or {@link #notifyItemChanged(Context, long)}
+ * after committing.
+ */
+public class ItemProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "com.intelygenz.ifeedit.items";
+
+    /** All the items. */
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/" + ItemStore.DB_TABLE_NAME);
+
+    /**
+     * @param id The item "_id".
+     * @return The URI of a single item.
+     */
+    public static Uri itemUri(long id) {
+        return ContentUris.withAppendedId(CONTENT_URI, id);
+    }
+
+    /**
+     * Notifies that any items may have changed (new content, removed content).
+     */
+    public static void notifyItemsChanged(Context context) {
+        ItemStore.notifyContentChanged();
+        context.getContentResolver().notifyChange(CONTENT_URI, null);
+    }
+
+    /**
+     * Notifies that items have been inserted and nothing else has changed, so observers can read
+     * just the new items.
+     * @param fromId The lowest id inserted.
+     * @param toId The highest id inserted.
+     */
+    public static void notifyItemsInserted(Context context, long fromId, long toId) {
+        ItemStore.notifyContentChanged();
+        context.getContentResolver().notifyChange(CONTENT_URI.buildUpon().appendPath(INSERTED)
+                .appendPath(String.valueOf(fromId)).appendPath(String.valueOf(toId)).build(), null);
+    }
+
+    /**
+     * @param uri A notified URI.
+     * @return The lowest and highest id inserted if it was notified by {@link #notifyItemsInserted}, null otherwise.
+     */
+    public static long[] insertedRange(Uri uri) {
+        if (uri == null) return null;
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 4 || !INSERTED.equals(segments.get(1))) return null;
+        try {
+            return new long[] { Long.parseLong(segments.get(2)), Long.parseLong(segments.get(3)) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Notifies that the state (read, starred) of a single item has changed.
+     * Its content is the same, so the database generation does not change.
+     */
+    public static void notifyItemChanged(Context context, long id) {
+        context.getContentResolver().notifyChange(itemUri(id), null);
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        selection = selectionFor(uri, selection);
+        Cursor cursor = getDatabase().query(ItemStore.DB_TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case ITEMS:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY;
+            case ITEM:
+                return "vnd.android.cursor.item/vnd." + AUTHORITY;
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        if (sUriMatcher.match(uri) != ITEMS) throw new IllegalArgumentException("Unknown URI " + uri);
+        SQLiteDatabase db = getDatabase();
+        long start = QueryProfiler.begin();
+        long id = db.insert(ItemStore.DB_TABLE_NAME, null, values);
+        QueryProfiler.end(db, "INSERT INTO " + ItemStore.DB_TABLE_NAME, start, id == -1 ? 0 : 1);
+        if (id == -1) return null;
+        notifyItemsChanged(getContext());
+        return itemUri(id);
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != ITEMS) throw new IllegalArgumentException("Unknown URI " + uri);
+        SQLiteDatabase db = getDatabase();
+        int inserted = 0;
+        long start = QueryProfiler.begin();
+        db.beginTransaction();
+        try {
+            for (ContentValues v : values) {
+                if (db.insert(ItemStore.DB_TABLE_NAME, null, v) != -1) inserted++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            QueryProfiler.end(db, "INSERT INTO " + ItemStore.DB_TABLE_NAME, start, inserted);
+        }
+        // One notification for the whole batch.
+        if (inserted > 0) notifyItemsChanged(getContext());
+        return inserted;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = getDatabase();
+        String where = selectionFor(uri, selection);
+        long start = QueryProfiler.begin();
+        int updated = db.update(ItemStore.DB_TABLE_NAME, values, where, selectionArgs);
+        // The statement is only written out while profiling.
+        if (start != 0) {
+            QueryProfiler.end(db, "UPDATE " + ItemStore.DB_TABLE_NAME + " SET " + TextUtils.join(" = ?, ", values.keySet()) + " = ?"
+                    + (where != null ? " WHERE " + where : ""), start, updated);
+        }
+        if (updated > 0) {
+            ItemStore.notifyContentChanged();
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return updated;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = getDatabase();
+        String where = selectionFor(uri, selection);
+        long start = QueryProfiler.begin();
+        int deleted = db.delete(ItemStore.DB_TABLE_NAME, where, selectionArgs);
+        if (start != 0) QueryProfiler.end(db, "DELETE FROM " + ItemStore.DB_TABLE_NAME + (where != null ? " WHERE " + where : ""), start, deleted);
+        if (deleted > 0) notifyItemsChanged(getContext());
+        return deleted;
+    }
+
+    /**
+     * Restricts the selection to the item of the URI, if it is a single item URI.
+     */
+    private static String selectionFor(Uri uri, String selection) {
+        switch (sUriMatcher.match(uri)) {
+            case ITEMS:
+                return selection;
+            case ITEM:
+                String byId = ItemStore.DB_COL_ID + " = " + ContentUris.parseId(uri);
+                return TextUtils.isEmpty(selection) ? byId : byId + " AND (" + selection + ")";
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    /**
+     * Opens the database the first time it is needed, it stays open while the process lives.
+     */
+    private synchronized SQLiteDatabase getDatabase() {
+        if (mDatabase == null) mDatabase = new ItemStore(getContext());
+        return mDatabase.get();
+    }
+
+    /** Path of the notifications of inserted items. */
+    private static final String INSERTED = "inserted";
+
+    private static final int ITEMS = 1;
+    private static final int ITEM = 2;
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        sUriMatcher.addURI(AUTHORITY, ItemStore.DB_TABLE_NAME, ITEMS);
+        sUriMatcher.addURI(AUTHORITY, ItemStore.DB_TABLE_NAME + "/#", ITEM);
+    }
+
+    private ItemStore mDatabase;
+}
@@ -0,0 +1,184 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Read and starred state of the items, changed by the user.
+ * Changes are kept in memory, so they are displayed right away, and written to the database
+ * later by a background thread, all the changes made in a while in a single transaction.
+ * Once written, a change is kept only until a cursor read after the write is displayed, see
+ * {@link #forgetWritten}.
+ */
+public class ItemStateStore {
+
+    /**
+     * Provides the application wide state store.
+     */
+    public static synchronized ItemStateStore getInstance(Context context) {
+        if (sInstance == null) sInstance = new ItemStateStore(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private ItemStateStore(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread("ItemStateWriter");
+        thread.start();
+        mWriter = new Handler(thread.getLooper());
+    }
+
+    /**
+     * @param id The item "_id".
+     * @param stored The value of {@link ItemStore#DB_COL_READ} read from the database.
+     * @return Whether the item has been read, considering the changes not yet in the database.
+     */
+    public synchronized boolean isRead(long id, boolean stored) {
+        Integer state = mStates.get(id);
+        return state != null ? (state & READ) != 0 : stored;
+    }
+
+    /**
+     * @param id The item "_id".
+     * @param stored The value of {@link ItemStore#DB_COL_STARRED} read from the database.
+     * @return Whether the item is starred, considering the changes not yet in the database.
+     */
+    public synchronized boolean isStarred(long id, boolean stored) {
+        Integer state = mStates.get(id);
+        return state != null ? (state & STARRED) != 0 : stored;
+    }
+
+    /**
+     * Changes the read state of an item. Returns immediately, the database is updated later.
+     * @param starred The current starred state of the item, kept as is.
+     */
+    public void setRead(long id, boolean read, boolean starred) {
+        setState(id, (read ? READ : 0) | (starred ? STARRED : 0));
+    }
+
+    /**
+     * Changes the starred state of an item. Returns immediately, the database is updated later.
+     * @param read The current read state of the item, kept as is.
+     */
+    public void setStarred(long id, boolean read, boolean starred) {
+        setState(id, (read ? READ : 0) | (starred ? STARRED : 0));
+    }
+
+    /**
+     * @return The number of writes committed so far. Taken before reading a cursor, it tells which changes
+     *         the cursor already has (see {@link #forgetWritten}).
+     */
+    public static long getWrites() {
+        return sWrites;
+    }
+
+    /**
+     * Forgets the changes already written, to be called when a cursor that has them is displayed.
+     * @param writes The value of {@link #getWrites()} before the cursor was read.
+     */
+    public synchronized void forgetWritten(long writes) {
+        Iterator<Map.Entry<Long, Long>> written = mWritten.entrySet().iterator();
+        while (written.hasNext()) {
+            Map.Entry<Long, Long> change = written.next();
+            if (change.getValue() <= writes) {
+                mStates.remove(change.getKey());
+                written.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the changes, to be called when the items in the database are replaced (ids are reused).
+     */
+    public synchronized void clear() {
+        mStates.clear();
+        mPending.clear();
+        mWritten.clear();
+    }
+
+    private synchronized void setState(long id, int state) {
+        mStates.put(id, state);
+        mPending.put(id, state);
+        mWritten.remove(id);
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mWriter.postDelayed(mFlush, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes the pending changes in a single transaction. Runs in the writer thread.
+     */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            Map<Long, Integer> batch;
+            synchronized (ItemStateStore.this) {
+                mFlushScheduled = false;
+                batch = new HashMap<>(mPending);
+                mPending.clear();
+            }
+            if (batch.isEmpty()) return;
+
+            if (mDatabase == null) mDatabase = new ItemStore(mContext);
+            SQLiteDatabase db = mDatabase.get();
+            SQLiteStatement update = db.compileStatement("UPDATE " + ItemStore.DB_TABLE_NAME +
+                    " SET " + ItemStore.DB_COL_READ + " = ?, " + ItemStore.DB_COL_STARRED + " = ? WHERE " + ItemStore.DB_COL_ID + " = ?");
+            long start = QueryProfiler.begin();
+            db.beginTransaction();
+            try {
+                for (Map.Entry<Long, Integer> change : batch.entrySet()) {
+                    update.bindLong(1, (change.getValue() & READ) != 0 ? 1 : 0);
+                    update.bindLong(2, (change.getValue() & STARRED) != 0 ? 1 : 0);
+                    update.bindLong(3, change.getKey());
+                    update.executeUpdateDelete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                QueryProfiler.end(db, update, start, batch.size());
+                update.close();
+            }
+            synchronized (ItemStateStore.this) {
+                long writes = ++sWrites;
+                // Unless changed again meanwhile.
+                for (Long id : batch.keySet()) {
+                    if (!mPending.containsKey(id) && mStates.containsKey(id)) mWritten.put(id, writes);
+                }
+            }
+            for (Long id : batch.keySet()) ItemProvider.notifyItemChanged(mContext, id);
+        }
+    };
+
+    /** How long changes are gathered before writing them. */
+    private static final long FLUSH_DELAY_MS = 1000;
+
+    /** State flags. */
+    private static final int READ = 1;
+    private static final int STARRED = 2;
+
+    private static ItemStateStore sInstance;
+    private static volatile long sWrites;
+
+    private final Context mContext;
+    private final Handler mWriter;
+
+    /** Database used by the writer thread only. */
+    private ItemStore mDatabase;
+
+    /** The states changed by the user (kept after written, the displayed cursors may be older). */
+    private final Map<Long, Integer> mStates = new HashMap<>();
+
+    /** The write each state written is in, see {@link #getWrites()}. */
+    private final Map<Long, Long> mWritten = new HashMap<>();
+
+    /** The states not yet written to the database. */
+    private final Map<Long, Integer> mPending = new HashMap<>();
+    private boolean mFlushScheduled;
+}
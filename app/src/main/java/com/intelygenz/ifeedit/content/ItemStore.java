@@ -1,8 +1,16 @@
 package com.intelygenz.ifeedit.content;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Looper;
+import android.util.Log;
+
+import com.intelygenz.ifeedit.BuildConfig;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides the database used to save items downloaded from the RSS URL.
@@ -18,6 +26,33 @@ public class ItemStore {
 	public static final String DB_COL_DESCRIPTION = "description";
     public static final String DB_COL_IMAGE_URL = "image_url";
     public static final String DB_COL_IMAGE_CONTENT = "image_content";
+    public static final String DB_COL_FEED = "feed";
+    public static final String DB_COL_READ = "read";
+    public static final String DB_COL_STARRED = "starred";
+    public static final String DB_COL_SUMMARY = "summary";
+    public static final String DB_COL_DESCRIPTION_ENCODING = "description_encoding";
+    public static final String DB_COL_GUID = "guid";
+    public static final String DB_COL_BODY_FILE = "body_file";
+    public static final String DB_COL_LINK_HASH = "link_hash";
+    public static final String DB_COL_DUPLICATE_OF = "duplicate_of";
+    public static final String DB_COL_IMAGE_COLOR = "image_color";
+    public static final String DB_COL_IMAGE_PREVIEW = "image_preview";
+
+    /** Selects the items that are not a copy of another one, the ones displayed. */
+    public static final String ORIGINALS_ONLY = DB_COL_DUPLICATE_OF + " IS NULL";
+
+    /** Feeds table: what is known of each feed to schedule its syncs, see {@link FeedScheduler}. */
+    public static final String FEEDS_TABLE_NAME = "feeds";
+    public static final String FEEDS_COL_URL = "url";
+    public static final String FEEDS_COL_TTL = "ttl";
+    public static final String FEEDS_COL_SKIP_HOURS = "skip_hours";
+    public static final String FEEDS_COL_SKIP_DAYS = "skip_days";
+    public static final String FEEDS_COL_UPDATE_PERIOD = "update_period";
+    public static final String FEEDS_COL_UPDATE_FREQUENCY = "update_frequency";
+    public static final String FEEDS_COL_LAST_SYNC = "last_sync";
+    public static final String FEEDS_COL_NEXT_SYNC = "next_sync";
+    public static final String FEEDS_COL_BACKLOG = "backlog";
+    public static final String FEEDS_COL_FAILURES = "failures";
 
 	public static final String[] DB_COLS = new String[] {
         DB_COL_ID,
@@ -27,20 +62,55 @@ public class ItemStore {
 		DB_COL_DESCRIPTION,
         DB_COL_IMAGE_URL,
         DB_COL_IMAGE_CONTENT,
+        DB_COL_FEED,
+        DB_COL_READ,
+        DB_COL_STARRED,
+        DB_COL_SUMMARY,
+        DB_COL_DESCRIPTION_ENCODING,
+        DB_COL_GUID,
+        DB_COL_BODY_FILE,
+        DB_COL_LINK_HASH,
+        DB_COL_DUPLICATE_OF,
+        DB_COL_IMAGE_COLOR,
+        DB_COL_IMAGE_PREVIEW,
     };
 	
     /**
      * Creates the object that provides access to the database.
+     * The database is not opened until {@link #get()}: opening may upgrade and vacuum it, so it
+     * must happen in a background thread, not wherever the object is created.
      */
     public ItemStore(Context context) {
         mDatabaseHelper = new DatabaseHelper(context);
-        mDb = mDatabaseHelper.getWritableDatabase();
     }
     
     /**
-     * Provides the database to run queries on it.
+     * The generation changes every time the content of the database changes, so anything read
+     * from it can be known to be outdated.
+     * @return The current generation (of this process).
+     */
+    public static long getGeneration() {
+        return sGeneration.get();
+    }
+
+    /**
+     * To be called after committing any change to the items, see {@link #getGeneration()}.
      */
-    public SQLiteDatabase get() {
+    public static void notifyContentChanged() {
+        sGeneration.incrementAndGet();
+    }
+
+    /**
+     * Provides the database to run queries on it, opening it the first time.
+     * Not to be called in the main thread.
+     */
+    public synchronized SQLiteDatabase get() {
+        if (mDb == null) {
+            if (BuildConfig.DEBUG && Looper.myLooper() == Looper.getMainLooper()) {
+                Log.w("ItemStore", "Database opened in the main thread", new Throwable());
+            }
+            mDb = mDatabaseHelper.getWritableDatabase();
+        }
     	return mDb;
     }
     
@@ -48,11 +118,11 @@ public class ItemStore {
      * Closes the database.
      * Note: if required, create a new instance of this object to open again.
      */
-    public void close() {
+    public synchronized void close() {
     	try {
 	        mDatabaseHelper.close();
 	        mDatabaseHelper = null;
-	        mDb.releaseReference();
+	        if (mDb != null) mDb.releaseReference();
 	        mDb = null;
     	}
     	catch (Exception e) { e.printStackTrace(); }
@@ -60,7 +130,10 @@ public class ItemStore {
 
 	/** Database file name in private file system. */
     private static final String DATABASE_NAME = "ifeedit.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 12;
+
+    /** See {@link #getGeneration()}. */
+    private static final AtomicLong sGeneration = new AtomicLong();
 
     protected SQLiteDatabase mDb;
     protected DatabaseHelper mDatabaseHelper;
@@ -70,7 +143,8 @@ public class ItemStore {
      */
     private class DatabaseHelper extends SQLiteOpenHelper {
         public DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            // Queries are counted against the hot path budgets in debug builds, and profiled when turned on.
+            super(context, DATABASE_NAME, QueryProfiler.getCursorFactory(), DATABASE_VERSION);
         }
 
         @Override
@@ -84,13 +158,172 @@ public class ItemStore {
             	"," + DB_COL_DESCRIPTION	+ " TEXT    " +
                 "," + DB_COL_IMAGE_URL  	+ " TEXT    " +
                 "," + DB_COL_IMAGE_CONTENT 	+ " BLOB    " +
+                "," + DB_COL_FEED           + " TEXT    " +
+                "," + DB_COL_READ           + " INTEGER DEFAULT 0" +
+                "," + DB_COL_STARRED        + " INTEGER DEFAULT 0" +
+                "," + DB_COL_SUMMARY        + " TEXT    " +
+                "," + DB_COL_DESCRIPTION_ENCODING + " INTEGER DEFAULT 0" +
+                "," + DB_COL_GUID           + " TEXT    " +
+                "," + DB_COL_BODY_FILE      + " TEXT    " +
+                "," + DB_COL_LINK_HASH      + " INTEGER " +
+                "," + DB_COL_DUPLICATE_OF   + " INTEGER " +
+                "," + DB_COL_IMAGE_COLOR    + " INTEGER " +
+                "," + DB_COL_IMAGE_PREVIEW  + " BLOB    " +
             	")"
             );
+            createFeedIndex(db);
+            createGuidIndex(db);
+            createLinkHashIndex(db);
+            createFeedsTable(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        	// Do nothing.
+            if (oldVersion < 2) {
+                // Items are now tagged with the feed they come from so retention can be applied per feed.
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_FEED + " TEXT");
+                createFeedIndex(db);
+            }
+            if (oldVersion < 3) {
+                // State of the items changed by the user.
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_READ + " INTEGER DEFAULT 0");
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_STARRED + " INTEGER DEFAULT 0");
+            }
+            if (oldVersion < 4) {
+                // The list reads a precomputed summary, descriptions may be stored compressed.
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_SUMMARY + " TEXT");
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_DESCRIPTION_ENCODING + " INTEGER DEFAULT 0");
+                // Filled below.
+            }
+            if (oldVersion < 5) {
+                // Identity of the items within their feed, so a sync only adds the new ones.
+                // The link is the best identity known for the items stored before.
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_GUID + " TEXT");
+                db.execSQL("UPDATE " + DB_TABLE_NAME + " SET " + DB_COL_GUID + " = " + DB_COL_LINK);
+                createGuidIndex(db);
+            }
+            if (oldVersion < 6) {
+                createFeedsTable(db);
+            }
+            if (oldVersion < 7) {
+                // Descriptions too long for the database are kept whole in a file, see ItemBodies.
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_BODY_FILE + " TEXT");
+            }
+            if (oldVersion < 8) {
+                // Identity of the articles across feeds, so copies are linked to the item stored first.
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_LINK_HASH + " INTEGER");
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_DUPLICATE_OF + " INTEGER");
+                fillLinkHashes(db);
+                createLinkHashIndex(db);
+            }
+            if (oldVersion < 9) {
+                // Painted by the list until the image is decoded, computed for the stored images after the next sync.
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_IMAGE_COLOR + " INTEGER");
+                db.execSQL("ALTER TABLE " + DB_TABLE_NAME + " ADD COLUMN " + DB_COL_IMAGE_PREVIEW + " BLOB");
+            }
+            if (oldVersion < 10) {
+                // Summaries are now short plain text, they used to be the rest of the description.
+                fillSummaries(db);
+            }
+            if (oldVersion < 11 && oldVersion >= 6) {
+                // Whether the last sync left new items behind, see ContentDownload. Created with the column before version 6.
+                db.execSQL("ALTER TABLE " + FEEDS_TABLE_NAME + " ADD COLUMN " + FEEDS_COL_BACKLOG + " INTEGER DEFAULT 0");
+            }
+            if (oldVersion < 12 && oldVersion >= 6) {
+                // Failed syncs in a row, to retry later and later, see FeedScheduler. Created with the column before version 6.
+                db.execSQL("ALTER TABLE " + FEEDS_TABLE_NAME + " ADD COLUMN " + FEEDS_COL_FAILURES + " INTEGER DEFAULT 0");
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+
+            // Incremental auto-vacuum lets the compaction give back the pages freed by evicted items.
+            // The mode can only be switched by a full VACUUM, so it is done once for databases created before.
+            Cursor cursor = db.rawQuery("PRAGMA auto_vacuum", null);
+            int mode = cursor.moveToFirst() ? cursor.getInt(0) : AUTO_VACUUM_INCREMENTAL;
+            cursor.close();
+            if (mode != AUTO_VACUUM_INCREMENTAL && !db.isReadOnly()) {
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+            }
+        }
+
+        /**
+         * Computes the summary of the items stored before it was a column, or when it was still HTML.
+         */
+        private void fillSummaries(SQLiteDatabase db) {
+            Cursor cursor = db.query(DB_TABLE_NAME, new String[] { DB_COL_ID, DB_COL_DESCRIPTION, DB_COL_DESCRIPTION_ENCODING },
+                    null, null, null, null, null);
+            ContentValues values = new ContentValues();
+            try {
+                while (cursor.moveToNext()) {
+                    values.put(DB_COL_SUMMARY, ItemSummary.fromDescription(ItemDescription.read(cursor)));
+                    db.update(DB_TABLE_NAME, values, DB_COL_ID + " = " + cursor.getLong(0), null);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Computes the link hash of the items stored before it existed.
+         */
+        private void fillLinkHashes(SQLiteDatabase db) {
+            Cursor cursor = db.query(DB_TABLE_NAME, new String[] { DB_COL_ID, DB_COL_LINK, DB_COL_GUID }, null, null, null, null, null);
+            ContentValues values = new ContentValues();
+            try {
+                while (cursor.moveToNext()) {
+                    Long hash = LinkIdentity.hash(cursor.isNull(1) ? cursor.getString(2) : cursor.getString(1));
+                    if (hash == null) continue;
+                    values.put(DB_COL_LINK_HASH, hash);
+                    db.update(DB_TABLE_NAME, values, DB_COL_ID + " = " + cursor.getLong(0), null);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Index to find the item a new one is a copy of.
+         */
+        private void createLinkHashIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE_NAME + "_link_hash ON " + DB_TABLE_NAME + "(" + DB_COL_LINK_HASH + ")");
         }
+
+        /**
+         * Index to list and evict the items of one feed by publication date.
+         */
+        private void createFeedIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE_NAME + "_feed_date ON " + DB_TABLE_NAME + "(" + DB_COL_FEED + ", " + DB_COL_PUB_DATE + ")");
+        }
+
+        private void createFeedsTable(SQLiteDatabase db) {
+            db.execSQL(
+                "CREATE TABLE IF NOT EXISTS " + FEEDS_TABLE_NAME +
+                "(" + FEEDS_COL_URL                 + " TEXT PRIMARY KEY" +
+                "," + FEEDS_COL_TTL                 + " INTEGER DEFAULT 0" +
+                "," + FEEDS_COL_SKIP_HOURS          + " INTEGER DEFAULT 0" +
+                "," + FEEDS_COL_SKIP_DAYS           + " INTEGER DEFAULT 0" +
+                "," + FEEDS_COL_UPDATE_PERIOD       + " TEXT    " +
+                "," + FEEDS_COL_UPDATE_FREQUENCY    + " INTEGER DEFAULT 1" +
+                "," + FEEDS_COL_LAST_SYNC           + " LONG    " +
+                "," + FEEDS_COL_NEXT_SYNC           + " LONG    " +
+                "," + FEEDS_COL_BACKLOG             + " INTEGER DEFAULT 0" +
+                "," + FEEDS_COL_FAILURES            + " INTEGER DEFAULT 0" +
+                ")"
+            );
+        }
+
+        /**
+         * Index to find whether an item of a feed is already stored.
+         */
+        private void createGuidIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE_NAME + "_feed_guid ON " + DB_TABLE_NAME + "(" + DB_COL_FEED + ", " + DB_COL_GUID + ")");
+        }
+
+        /** Value of "PRAGMA auto_vacuum" for the incremental mode. */
+        private static final int AUTO_VACUUM_INCREMENTAL = 2;
     }
 }
@@ -0,0 +1,41 @@
+package com.intelygenz.ifeedit.content;
+
+import android.text.Html;
+
+/**
+ * Builds the short text displayed for an item in the list out of its description.
+ */
+public class ItemSummary {
+
+    /** Longer summaries are cut, the list shows a couple of lines at most. */
+    public static final int MAX_LENGTH = 300;
+
+    /**
+     * The description content sometimes comes as plain text but also as HTML. Not easy to get a proper summary:
+     * the first paragraph is skipped when there are several (it is usually an image), then the tags are removed.
+     * @param description The item description, may be HTML.
+     * @return The summary as plain text, at most {@link #MAX_LENGTH} characters.
+     */
+    public static String fromDescription(String description) {
+        if (description == null) return "";
+        int paragraph = description.indexOf("<p>", description.indexOf("<p>") + 3);
+        String summary = paragraph != -1 ? plainText(description.substring(paragraph + 3)) : "";
+        return summary.isEmpty() ? plainText(description) : summary;
+    }
+
+    /**
+     * Text as displayed, out of the first part of the HTML only: the rest would be cut anyway.
+     */
+    private static String plainText(String html) {
+        if (html.length() > MAX_HTML_LENGTH) html = html.substring(0, MAX_HTML_LENGTH);
+        // Images become object replacement characters.
+        String text = Html.fromHtml(html).toString().replace('\uFFFC', ' ').replaceAll("\\s+", " ").trim();
+        return text.length() > MAX_LENGTH ? text.substring(0, MAX_LENGTH) : text;
+    }
+
+    /** HTML parsed to get a summary, enough for {@link #MAX_LENGTH} characters of text in most descriptions. */
+    private static final int MAX_HTML_LENGTH = 8 * 1024;
+
+    private ItemSummary() {
+    }
+}
@@ -0,0 +1,90 @@
+package com.intelygenz.ifeedit.content;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Identity of an article by its link, the same for the copies of the article in different feeds
+ * (aggregators, mirrors) even if their links differ in the details: the scheme, the "www." host
+ * prefix, default ports, tracking query parameters, the fragment and trailing slashes are ignored.
+ * Stored as a 64 bit hash in {@link ItemStore#DB_COL_LINK_HASH}.
+ */
+public class LinkIdentity {
+
+    /**
+     * @param link The link of an item, or its guid if it is a permalink.
+     * @return The link with the parts that do not identify the article removed, null if it is not a URL.
+     */
+    public static String normalize(String link) {
+        if (link == null) return null;
+        String text = link.trim();
+        int schemeEnd = text.indexOf("://");
+        if (schemeEnd <= 0) return null;
+        text = text.substring(schemeEnd + 3);
+
+        int fragment = text.indexOf('#');
+        if (fragment >= 0) text = text.substring(0, fragment);
+        String query = "";
+        int queryStart = text.indexOf('?');
+        if (queryStart >= 0) {
+            query = text.substring(queryStart + 1);
+            text = text.substring(0, queryStart);
+        }
+
+        // Host (case insensitive) and path (case sensitive).
+        int pathStart = text.indexOf('/');
+        String host = (pathStart >= 0 ? text.substring(0, pathStart) : text).toLowerCase(Locale.US);
+        String path = pathStart >= 0 ? text.substring(pathStart) : "";
+        if (host.startsWith("www.")) host = host.substring(4);
+        if (host.endsWith(":80")) host = host.substring(0, host.length() - 3);
+        else if (host.endsWith(":443")) host = host.substring(0, host.length() - 4);
+        if (host.isEmpty()) return null;
+        while (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+
+        StringBuilder normalized = new StringBuilder(host.length() + path.length() + query.length() + 1);
+        normalized.append(host).append(path);
+        char separator = '?';
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty() || isTracking(parameter)) continue;
+            normalized.append(separator).append(parameter);
+            separator = '&';
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @param link The link of an item, or its guid if it is a permalink.
+     * @return The hash of the normalized link, null if it is not a URL.
+     */
+    public static Long hash(String link) {
+        String normalized = normalize(link);
+        if (normalized == null) return null;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(normalized.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) hash = (hash << 8) | (digest[i] & 0xff);
+            return hash;
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private static boolean isTracking(String parameter) {
+        int equals = parameter.indexOf('=');
+        String name = (equals >= 0 ? parameter.substring(0, equals) : parameter).toLowerCase(Locale.US);
+        return name.startsWith("utm_") || TRACKING_PARAMETERS.contains(name);
+    }
+
+    /** Query parameters added by campaigns and analytics, not part of the article address. */
+    private static final Set<String> TRACKING_PARAMETERS = new HashSet<>(Arrays.asList(
+            "fbclid", "gclid", "dclid", "msclkid", "mc_cid", "mc_eid", "yclid", "igshid",
+            "ref", "ref_src", "source", "cmpid", "ncid", "ocid", "_ga", "_hsenc", "_hsmi"));
+
+    private LinkIdentity() {
+    }
+}
@@ -0,0 +1,130 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Copies of the images referenced by the item descriptions, kept as files so the detail view
+ * displays them with no network access. Files are named after a hash of the image URL.
+ * The image of an item is not copied when it is stored: it is already in the database, the detail
+ * view copies it the first time it is displayed.
+ */
+public class LocalImageCache {
+
+    public LocalImageCache(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * @return The URL of the local copy of the image ("file://..."), null if there is none.
+     */
+    public String getLocalUrl(String imageUrl) {
+        File file = fileFor(imageUrl);
+        if (file == null || !file.exists()) return null;
+        return Uri.fromFile(file).toString();
+    }
+
+    /**
+     * Stores a copy of an image, replacing any previous one.
+     * @return Whether it could be stored.
+     */
+    public boolean put(String imageUrl, byte[] content) {
+        return put(imageUrl, new ByteArrayInputStream(content), content.length);
+    }
+
+    /**
+     * Stores a copy of an image read from a stream, replacing any previous one. The copy is written
+     * to a temporary file first, so it is either whole or not there.
+     * The stream is not closed.
+     * @param maxBytes Larger images are not stored, and not read past the limit.
+     * @return Whether it could be stored.
+     */
+    public boolean put(String imageUrl, InputStream content, int maxBytes) {
+        File file = fileFor(imageUrl);
+        if (file == null || (!mDirectory.exists() && !mDirectory.mkdirs())) return false;
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temporary);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int total = 0;
+            int read;
+            while ((read = content.read(buffer, 0, Math.min(buffer.length, maxBytes - total + 1))) != -1) {
+                total += read;
+                if (total > maxBytes) return false;
+                out.write(buffer, 0, read);
+            }
+            out.close();
+            out = null;
+            return temporary.renameTo(file);
+        } catch (IOException e) {
+            Log.i("LocalImageCache", "Failed to store image from " + imageUrl);
+            return false;
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException e) { /* Give up. */ }
+            if (temporary.exists() && !temporary.delete()) Log.i("LocalImageCache", "Failed to delete " + temporary);
+        }
+    }
+
+    /**
+     * Deletes the oldest copies until the cache holds no more than the given size.
+     * @param maxBytes The size limit, all the copies are deleted if 0 or less.
+     */
+    public void trimTo(long maxBytes) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= maxBytes) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && total > maxBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) total -= length;
+        }
+    }
+
+    /**
+     * Deletes all the copies.
+     */
+    public void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.delete()) Log.i("LocalImageCache", "Failed to delete " + file);
+        }
+    }
+
+    private File fileFor(String imageUrl) {
+        if (imageUrl == null) return null;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(imageUrl.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return null;
+        }
+    }
+
+    private static final String DIRECTORY_NAME = "item_images";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mDirectory;
+}
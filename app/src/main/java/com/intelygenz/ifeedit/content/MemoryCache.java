@@ -0,0 +1,78 @@
+package com.intelygenz.ifeedit.content;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache bounded by the memory its values take, to be registered in the
+ * {@link CacheRegistry} (which sets its maximum).
+ */
+public abstract class MemoryCache<K, V> implements CacheRegistry.Cache {
+
+    /**
+     * @return The value, null if not cached.
+     */
+    public synchronized V get(K key) {
+        V value = mValues.get(key);
+        if (value != null) mStats.hit();
+        else mStats.miss();
+        return value;
+    }
+
+    public synchronized void put(K key, V value) {
+        int size = sizeOf(value);
+        // Would evict everything else, and itself right away.
+        if (size > mMaxBytes) {
+            remove(key);
+            return;
+        }
+        V previous = mValues.put(key, value);
+        if (previous != null) mBytes -= sizeOf(previous);
+        mBytes += size;
+        trimTo(mMaxBytes);
+    }
+
+    public synchronized void remove(K key) {
+        V previous = mValues.remove(key);
+        if (previous != null) mBytes -= sizeOf(previous);
+    }
+
+    @Override
+    public synchronized int getSizeBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public synchronized void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    @Override
+    public synchronized void trimTo(int maxBytes) {
+        Iterator<Map.Entry<K, V>> it = mValues.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            mBytes -= sizeOf(it.next().getValue());
+            it.remove();
+            mStats.evicted();
+        }
+    }
+
+    @Override
+    public CacheRegistry.Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * @return Approximate memory in bytes taken by the value. Must not change while cached.
+     */
+    protected abstract int sizeOf(V value);
+
+    private int mMaxBytes;
+    private int mBytes;
+    private final CacheRegistry.Stats mStats = new CacheRegistry.Stats();
+
+    /** Values in access order, so the eldest is the least recently used. */
+    private final Map<K, V> mValues = new LinkedHashMap<>(16, 0.75f, true);
+}
@@ -0,0 +1,279 @@
+package com.intelygenz.ifeedit.content;
+
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Time, rows and cursor window fills of the statements run on {@link ItemStore}, aggregated per
+ * call site (the first caller outside the framework), to find the queries worth optimizing.
+ * Off by default (finding the call site costs a stack trace per statement), turned on in the
+ * debug settings. Statements slower than {@link #SLOW_STATEMENT_MS} are written to the log with
+ * their query plan.
+ * Queries are measured by the cursors of the database (the time spent filling their windows,
+ * which is when SQLite actually runs them) and recorded when the cursor is closed. Other
+ * statements are measured by their callers with {@link #begin()} and {@link #end}.
+ */
+public class QueryProfiler {
+
+    /** Preference key, see res/xml/pref_general.xml. */
+    public static final String PREF_ENABLED = "settings_debug_queries";
+
+    /** Statements taking longer are logged with their plan: more than a frame. */
+    public static final long SLOW_STATEMENT_MS = 16;
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Starts measuring a statement that is not a query.
+     * @return To be passed to {@link #end}, 0 when profiling is off.
+     */
+    public static long begin() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Ends measuring a statement that is not a query (or a transaction of them).
+     * @param sql The statement, its plan is logged if it is slow.
+     * @param start As returned by {@link #begin()}.
+     * @param rows The rows changed.
+     */
+    public static void end(SQLiteDatabase db, String sql, long start, int rows) {
+        if (start == 0) return;
+        record(db, findCallSite(), sql, System.nanoTime() - start, rows, 0);
+    }
+
+    /**
+     * See {@link #end(SQLiteDatabase, String, long, int)}.
+     */
+    public static void end(SQLiteDatabase db, SQLiteStatement statement, long start, int rows) {
+        if (start == 0) return;
+        record(db, findCallSite(), sqlOf(statement.toString()), System.nanoTime() - start, rows, 0);
+    }
+
+    /**
+     * @return The factory of the cursors of the database, measuring the queries while profiling is on.
+     */
+    static SQLiteDatabase.CursorFactory getCursorFactory() {
+        return CURSOR_FACTORY;
+    }
+
+    /**
+     * Writes the stats of every call site to the log, slowest in total first.
+     * @return The same text written to the log.
+     */
+    public static synchronized String dump() {
+        Stats[] all = sStats.values().toArray(new Stats[sStats.size()]);
+        Arrays.sort(all, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats a, Stats b) {
+                return a.mTotalNanos < b.mTotalNanos ? 1 : a.mTotalNanos > b.mTotalNanos ? -1 : 0;
+            }
+        });
+        StringBuilder text = new StringBuilder();
+        for (Stats stats : all) text.append(stats).append('\n');
+        Log.i("QueryProfiler", text.toString());
+        return text.toString();
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public static synchronized void reset() {
+        sStats.clear();
+    }
+
+    private static void record(SQLiteDatabase db, String site, String sql, long nanos, int rows, int fills) {
+        synchronized (QueryProfiler.class) {
+            String key = site + '\n' + sql;
+            Stats stats = sStats.get(key);
+            if (stats == null) {
+                stats = new Stats(site, sql);
+                sStats.put(key, stats);
+            }
+            stats.add(nanos, rows, fills);
+        }
+        if (nanos >= SLOW_STATEMENT_MS * 1000000) {
+            Log.w("QueryProfiler", "Slow statement at " + site + ": " + nanos / 1000 + "us, " + rows + " rows, " +
+                    fills + " window fills: " + sql + "\n" + explain(db, sql));
+        }
+    }
+
+    /**
+     * @return The query plan of the statement, run with its parameters unbound (null): the values seldom change the plan.
+     */
+    private static String explain(SQLiteDatabase db, String sql) {
+        String verb = sql.trim().toUpperCase(Locale.US);
+        if (!verb.startsWith("SELECT") && !verb.startsWith("UPDATE") && !verb.startsWith("DELETE")) return "(no plan)";
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQueryWithFactory(PLAIN_FACTORY, "EXPLAIN QUERY PLAN " + sql, null, null);
+            // The detail is the last column.
+            while (cursor.moveToNext()) plan.append("  ").append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+        } catch (SQLException | IllegalStateException e) {
+            plan.append("  (no plan: ").append(e.getMessage()).append(")\n");
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        return plan.toString();
+    }
+
+    /**
+     * @return The first caller outside the framework and this class, as "Class.method:line".
+     */
+    private static String findCallSite() {
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            String className = frame.getClassName();
+            if (className.startsWith("android.") || className.startsWith("java.") || className.startsWith("dalvik.")
+                    || className.startsWith("com.android.") || className.equals(QueryProfiler.class.getName())
+                    || className.startsWith(ProfiledCursor.class.getName())) continue;
+            return className.substring(className.lastIndexOf('.') + 1) + '.' + frame.getMethodName() + ':' + frame.getLineNumber();
+        }
+        return "unknown";
+    }
+
+    /**
+     * The SQL of a statement or query from its description, "SQLiteProgram: SELECT...".
+     */
+    private static String sqlOf(String description) {
+        int start = description.indexOf(": ");
+        return start >= 0 ? description.substring(start + 2) : description;
+    }
+
+    /**
+     * Measures the window fills of a query, which run it: the first one when the rows are counted,
+     * then one for each move out of the rows in the window.
+     */
+    private static class ProfiledCursor extends SQLiteCursor {
+        ProfiledCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            super(driver, editTable, query);
+            mSite = findCallSite();
+            mSql = sqlOf(query.toString());
+        }
+
+        @Override
+        public int getCount() {
+            if (mCounted) return super.getCount();
+            long start = System.nanoTime();
+            int count = super.getCount();
+            mNanos += System.nanoTime() - start;
+            mFills++;
+            mCounted = true;
+            return count;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            CursorWindow window = getWindow();
+            if (window != null && newPosition >= window.getStartPosition()
+                    && newPosition < window.getStartPosition() + window.getNumRows()) {
+                return super.onMove(oldPosition, newPosition);
+            }
+            long start = System.nanoTime();
+            boolean moved = super.onMove(oldPosition, newPosition);
+            mNanos += System.nanoTime() - start;
+            mFills++;
+            return moved;
+        }
+
+        @Override
+        public void close() {
+            boolean record = !isClosed() && mCounted;
+            int rows = record ? super.getCount() : 0;
+            SQLiteDatabase db = getDatabase();
+            super.close();
+            if (record) record(db, mSite, mSql, mNanos, rows, mFills);
+        }
+
+        private final String mSite;
+        private final String mSql;
+        private long mNanos;
+        private int mFills;
+        private boolean mCounted;
+    }
+
+    /**
+     * Totals of the statements of one call site.
+     */
+    private static class Stats {
+        Stats(String site, String sql) {
+            mSite = site;
+            mSql = sql;
+        }
+
+        void add(long nanos, int rows, int fills) {
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+            mRows += rows;
+            mFills += fills;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(mSite);
+            text.append(": count=").append(mCount);
+            if (mCount > 0) {
+                text.append(" avg=").append(mTotalNanos / mCount / 1000).append("us");
+                text.append(" rows=").append(mRows / mCount);
+                text.append(" fills=").append((float) mFills / mCount);
+            }
+            text.append(" max=").append(mMaxNanos / 1000).append("us");
+            text.append(" total=").append(mTotalNanos / 1000000).append("ms");
+            text.append(" sql=").append(mSql);
+            return text.toString();
+        }
+
+        private final String mSite;
+        private final String mSql;
+        private int mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        private long mRows;
+        private long mFills;
+    }
+
+    private static volatile boolean sEnabled;
+
+    /** Stats by call site and statement. */
+    private static final Map<String, Stats> sStats = new LinkedHashMap<>();
+
+    /** Counts the query for {@link HotPathBudget}, then profiles it if profiling is on. */
+    private static final SQLiteDatabase.CursorFactory CURSOR_FACTORY = new SQLiteDatabase.CursorFactory() {
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+            HotPathBudget.countQuery();
+            return sEnabled ? new ProfiledCursor(masterQuery, editTable, query) : new SQLiteCursor(masterQuery, editTable, query);
+        }
+    };
+
+    /** The cursor a null factory would create, for the plans. */
+    private static final SQLiteDatabase.CursorFactory PLAIN_FACTORY = new SQLiteDatabase.CursorFactory() {
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+            return new SQLiteCursor(masterQuery, editTable, query);
+        }
+    };
+
+    private QueryProfiler() {
+    }
+}
@@ -0,0 +1,74 @@
+package com.intelygenz.ifeedit.content;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remembers the item ids matching the most recent searches.
+ * Every result is tagged with the {@link ItemStore#getGeneration() generation} of the database it
+ * was read from, so it is discarded as soon as the database content changes.
+ */
+public class QueryResultCache {
+
+    /**
+     * @param maxEntries Number of searches remembered, the least recently used ones are forgotten.
+     */
+    public QueryResultCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Searches differing only in case or surrounding spaces have the same results.
+     * @return The key of the search, empty for no search.
+     */
+    public static String normalize(String searchCondition) {
+        if (searchCondition == null) return "";
+        return searchCondition.trim().toLowerCase(Locale.getDefault());
+    }
+
+    /**
+     * @param query The normalized search.
+     * @param generation The current generation of the database.
+     * @return The ids matching the search, most recent first, or null if not known for this generation.
+     */
+    public synchronized long[] get(String query, long generation) {
+        Result result = mResults.get(query);
+        if (result == null || result.generation != generation) return null;
+        return result.ids;
+    }
+
+    /**
+     * @param query The normalized search.
+     * @param generation The generation of the database the ids were read from.
+     * @param ids The ids matching the search, most recent first.
+     */
+    public synchronized void put(String query, long generation, long[] ids) {
+        mResults.put(query, new Result(generation, ids));
+    }
+
+    public synchronized void clear() {
+        mResults.clear();
+    }
+
+    private static class Result {
+        Result(long generation, long[] ids) {
+            this.generation = generation;
+            this.ids = ids;
+        }
+
+        final long generation;
+        final long[] ids;
+    }
+
+    private final int mMaxEntries;
+
+    /** Results in access order, so the eldest is the least recently used. */
+    @SuppressWarnings("serial")
+    private final Map<String, Result> mResults = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > mMaxEntries;
+        }
+    };
+}
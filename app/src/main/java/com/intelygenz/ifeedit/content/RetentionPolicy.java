@@ -0,0 +1,71 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * Limits applied to the content kept in the item database.
+ * A limit of zero (or less) means no limit.
+ */
+public class RetentionPolicy {
+
+    /** Preference keys, see res/xml/pref_general.xml. */
+    public static final String PREF_MAX_AGE_DAYS = "settings_retention_max_age_days";
+    public static final String PREF_MAX_ITEMS_PER_FEED = "settings_retention_max_items";
+    public static final String PREF_MAX_TOTAL_MB = "settings_retention_max_mb";
+
+    /** Defaults used when the user has not configured the limits. */
+    public static final int DEFAULT_MAX_AGE_DAYS = 30;
+    public static final int DEFAULT_MAX_ITEMS_PER_FEED = 200;
+    public static final int DEFAULT_MAX_TOTAL_MB = 50;
+
+    /**
+     * @param maxAgeMillis Items published longer than this ago are evicted.
+     * @param maxItemsPerFeed Only the most recent items of each feed are kept.
+     * @param maxTotalBytes The oldest items are evicted until the content fits in this size.
+     */
+    public RetentionPolicy(long maxAgeMillis, int maxItemsPerFeed, long maxTotalBytes) {
+        mMaxAgeMillis = maxAgeMillis;
+        mMaxItemsPerFeed = maxItemsPerFeed;
+        mMaxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Reads the limits configured by the user in the settings.
+     */
+    public static RetentionPolicy fromPreferences(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long maxAgeDays = readInt(prefs, PREF_MAX_AGE_DAYS, DEFAULT_MAX_AGE_DAYS);
+        int maxItems = readInt(prefs, PREF_MAX_ITEMS_PER_FEED, DEFAULT_MAX_ITEMS_PER_FEED);
+        long maxMb = readInt(prefs, PREF_MAX_TOTAL_MB, DEFAULT_MAX_TOTAL_MB);
+        return new RetentionPolicy(maxAgeDays * 24 * 60 * 60 * 1000, maxItems, maxMb * 1024 * 1024);
+    }
+
+    public long getMaxAgeMillis() {
+        return mMaxAgeMillis;
+    }
+
+    public int getMaxItemsPerFeed() {
+        return mMaxItemsPerFeed;
+    }
+
+    public long getMaxTotalBytes() {
+        return mMaxTotalBytes;
+    }
+
+    /**
+     * Edit text preferences store numbers as strings, which may also be empty or invalid.
+     */
+    private static int readInt(SharedPreferences prefs, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(prefs.getString(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private final long mMaxAgeMillis;
+    private final int mMaxItemsPerFeed;
+    private final long mMaxTotalBytes;
+}
@@ -0,0 +1,225 @@
+package com.intelygenz.ifeedit.content;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evicts the items exceeding a {@link RetentionPolicy} and releases the freed disk space.
+ * Items are deleted in small batches, each one in its own transaction, so readers of the
+ * database are never blocked for long. It must run in a background thread.
+ */
+public class StoreCompaction {
+
+    /**
+     * @param database The item database to compact.
+     * @param bodies The whole descriptions of its items, counted in their size.
+     * @param policy The limits to apply.
+     */
+    public StoreCompaction(ItemStore database, ItemBodies bodies, RetentionPolicy policy) {
+        mDatabase = database;
+        mBodies = bodies;
+        mPolicy = policy;
+    }
+
+    /**
+     * Applies the retention limits (age, items per feed and total size, in this order), removes the copies
+     * of the evicted items and vacuums the database if anything was evicted.
+     * @return The number of evicted items.
+     */
+    public int run() {
+        int evicted = 0;
+        if (mPolicy.getMaxAgeMillis() > 0) evicted += evictByAge(System.currentTimeMillis() - mPolicy.getMaxAgeMillis());
+        if (mPolicy.getMaxItemsPerFeed() > 0) evicted += evictByFeedCount(mPolicy.getMaxItemsPerFeed());
+        if (mPolicy.getMaxTotalBytes() > 0) evicted += evictBySize(mPolicy.getMaxTotalBytes());
+        evicted += evictOrphanCopies();
+        if (evicted > 0) {
+            releaseFreePages();
+            Log.i("StoreCompaction", "Evicted items: " + evicted);
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes the items published before the given time. Items without a known date are kept.
+     */
+    private int evictByAge(long oldestAllowed) {
+        SQLiteStatement batch = mDatabase.get().compileStatement(
+            "DELETE FROM " + ItemStore.DB_TABLE_NAME + " WHERE " + ItemStore.DB_COL_ID + " IN (" +
+            "SELECT " + ItemStore.DB_COL_ID + " FROM " + ItemStore.DB_TABLE_NAME +
+            " WHERE " + ItemStore.DB_COL_PUB_DATE + " > 0 AND " + ItemStore.DB_COL_PUB_DATE + " < ?" +
+            " LIMIT " + EVICTION_BATCH_SIZE + ")");
+        batch.bindLong(1, oldestAllowed);
+        int evicted = runBatches(batch);
+        batch.close();
+        return evicted;
+    }
+
+    /**
+     * Keeps only the most recent items of every feed.
+     */
+    private int evictByFeedCount(int maxItemsPerFeed) {
+        List<String> feeds = new ArrayList<>();
+        Cursor cursor = mDatabase.get().rawQuery("SELECT DISTINCT " + ItemStore.DB_COL_FEED + " FROM " + ItemStore.DB_TABLE_NAME, null);
+        while (cursor.moveToNext()) feeds.add(cursor.getString(0));
+        cursor.close();
+
+        int evicted = 0;
+        SQLiteStatement batch = mDatabase.get().compileStatement(
+            "DELETE FROM " + ItemStore.DB_TABLE_NAME + " WHERE " + ItemStore.DB_COL_ID + " IN (" +
+            "SELECT " + ItemStore.DB_COL_ID + " FROM " + ItemStore.DB_TABLE_NAME +
+            " WHERE " + ItemStore.DB_COL_FEED + " IS ?" +
+            " ORDER BY " + ItemStore.DB_COL_PUB_DATE + " DESC LIMIT " + EVICTION_BATCH_SIZE + " OFFSET " + maxItemsPerFeed + ")");
+        for (String feed : feeds) {
+            if (feed == null) batch.bindNull(1);
+            else batch.bindString(1, feed);
+            evicted += runBatches(batch);
+        }
+        batch.close();
+        return evicted;
+    }
+
+    /**
+     * @return The bytes taken by the content of the stored items (in the database and their body files), as counted
+     * against the size limit. The local copies of the images get what is left of the limit, see {@link ContentDownload}.
+     */
+    public long getStoredBytes() {
+        return measure(mBodies.getSizes());
+    }
+
+    /**
+     * Removes the oldest items until the stored content fits in the given size.
+     * The content is measured once, then the size of each batch deleted is taken from it.
+     * The body files of the evicted items are deleted later, they are no longer counted.
+     */
+    private int evictBySize(long maxTotalBytes) {
+        Map<String, Long> bodySizes = mBodies.getSizes();
+        long storedBytes = measure(bodySizes);
+        SQLiteDatabase db = mDatabase.get();
+        SQLiteStatement delete = db.compileStatement(
+            "DELETE FROM " + ItemStore.DB_TABLE_NAME + " WHERE " + ItemStore.DB_COL_ID + " = ?");
+        int evicted = 0;
+        while (storedBytes > maxTotalBytes) {
+            long start = QueryProfiler.begin();
+            int deleted = 0;
+            db.beginTransaction();
+            try {
+                Cursor oldest = db.rawQuery("SELECT " + ItemStore.DB_COL_ID + ", " + ROW_BYTES + ", " + ItemStore.DB_COL_BODY_FILE +
+                        " FROM " + ItemStore.DB_TABLE_NAME + " ORDER BY " + ItemStore.DB_COL_PUB_DATE + " ASC LIMIT " + EVICTION_BATCH_SIZE, null);
+                try {
+                    // No more than needed.
+                    while (storedBytes > maxTotalBytes && oldest.moveToNext()) {
+                        delete.bindLong(1, oldest.getLong(0));
+                        deleted += delete.executeUpdateDelete();
+                        storedBytes -= oldest.getLong(1);
+                        Long bodySize = oldest.isNull(2) ? null : bodySizes.get(oldest.getString(2));
+                        if (bodySize != null) storedBytes -= bodySize;
+                    }
+                } finally {
+                    oldest.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                QueryProfiler.end(db, delete, start, deleted);
+            }
+            if (deleted == 0) break;
+            evicted += deleted;
+        }
+        delete.close();
+        return evicted;
+    }
+
+    /**
+     * @param bodySizes The sizes of the body files, see {@link ItemBodies#getSizes()}.
+     * @return The bytes of the stored content, see {@link #getStoredBytes()}.
+     */
+    private long measure(Map<String, Long> bodySizes) {
+        long bytes = DatabaseUtils.longForQuery(mDatabase.get(),
+                "SELECT IFNULL(SUM(" + ROW_BYTES + "), 0) FROM " + ItemStore.DB_TABLE_NAME, null);
+        if (bodySizes.isEmpty()) return bytes;
+        Cursor cursor = mDatabase.get().query(ItemStore.DB_TABLE_NAME, new String[] { ItemStore.DB_COL_BODY_FILE },
+                ItemStore.DB_COL_BODY_FILE + " IS NOT NULL", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Long bodySize = bodySizes.get(cursor.getString(0));
+                if (bodySize != null) bytes += bodySize;
+            }
+        } finally {
+            cursor.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Removes the copies of items no longer stored: if the article is still in a feed, the next sync stores it again.
+     */
+    private int evictOrphanCopies() {
+        SQLiteStatement batch = mDatabase.get().compileStatement(
+            "DELETE FROM " + ItemStore.DB_TABLE_NAME + " WHERE " + ItemStore.DB_COL_ID + " IN (" +
+            "SELECT " + ItemStore.DB_COL_ID + " FROM " + ItemStore.DB_TABLE_NAME +
+            " WHERE " + ItemStore.DB_COL_DUPLICATE_OF + " IS NOT NULL AND " + ItemStore.DB_COL_DUPLICATE_OF +
+            " NOT IN (SELECT " + ItemStore.DB_COL_ID + " FROM " + ItemStore.DB_TABLE_NAME + ")" +
+            " LIMIT " + EVICTION_BATCH_SIZE + ")");
+        int evicted = runBatches(batch);
+        batch.close();
+        return evicted;
+    }
+
+    /**
+     * Executes a batch delete statement until there is nothing left to delete.
+     */
+    private int runBatches(SQLiteStatement batch) {
+        int evicted = 0;
+        int deleted;
+        while ((deleted = runBatch(batch)) > 0) evicted += deleted;
+        return evicted;
+    }
+
+    /**
+     * Executes a batch delete statement once in its own transaction.
+     */
+    private int runBatch(SQLiteStatement batch) {
+        SQLiteDatabase db = mDatabase.get();
+        long start = QueryProfiler.begin();
+        int deleted = 0;
+        db.beginTransaction();
+        try {
+            deleted = batch.executeUpdateDelete();
+            db.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            db.endTransaction();
+            QueryProfiler.end(db, batch, start, deleted);
+        }
+    }
+
+    /**
+     * Gives the pages freed by the evicted items back to the file system.
+     * The pragma frees one page per step, so the cursor is fully iterated.
+     */
+    private void releaseFreePages() {
+        Cursor cursor = mDatabase.get().rawQuery("PRAGMA incremental_vacuum", null);
+        while (cursor.moveToNext()) { /* Each step frees pages. */ }
+        cursor.close();
+    }
+
+    /** The bytes of the content of a row counted against the size limit: its long texts and its blobs. */
+    private static final String ROW_BYTES = "IFNULL(LENGTH(" + ItemStore.DB_COL_DESCRIPTION + "), 0)" +
+            " + IFNULL(LENGTH(" + ItemStore.DB_COL_SUMMARY + "), 0)" +
+            " + IFNULL(LENGTH(" + ItemStore.DB_COL_IMAGE_CONTENT + "), 0)" +
+            " + IFNULL(LENGTH(" + ItemStore.DB_COL_IMAGE_PREVIEW + "), 0)";
+
+    /** Maximum items deleted in one transaction. */
+    private static final int EVICTION_BATCH_SIZE = 50;
+
+    private final ItemStore mDatabase;
+    private final ItemBodies mBodies;
+    private final RetentionPolicy mPolicy;
+}
@@ -0,0 +1,131 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Makes sure only one content download runs at a time.
+ * Repeated requests for the feed being downloaded join the download in progress, while a request
+ * for a different feed cancels it (its content is outdated) and starts a new one.
+ * Must be used from the main thread.
+ */
+public class SyncCoordinator {
+
+    /**
+     * Provides the application wide coordinator.
+     */
+    public static SyncCoordinator getInstance(Context context) {
+        if (sInstance == null) sInstance = new SyncCoordinator(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private SyncCoordinator(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Downloads the given feed into the item database, unless it is already being downloaded.
+     * @param rssUrl RSS URL when the feed XML file is located.
+     * @param listener To receive the notification when the download completes. Not notified if the
+     *                 download gets cancelled because a different feed is requested.
+     */
+    public void requestSync(String rssUrl, ContentDownload.Listener listener) {
+        requestSync(rssUrl, listener, true);
+    }
+
+    /**
+     * See {@link #requestSync(String, ContentDownload.Listener)}.
+     * @param showProgress Whether a new download shows its progress, not for syncs in the background.
+     */
+    public void requestSync(String rssUrl, ContentDownload.Listener listener, boolean showProgress) {
+        if (mDownload != null && rssUrl.equals(mRssUrl)) {
+            // Same feed already in flight: just wait for it.
+            if (listener != null && !mListeners.contains(listener)) mListeners.add(listener);
+            return;
+        }
+
+        // Outdated download, its listeners are no longer interested in it.
+        if (mDownload != null) {
+            mDownload.cancel();
+            mListeners.clear();
+        }
+
+        mRssUrl = rssUrl;
+        if (listener != null) mListeners.add(listener);
+        final ItemStore database = new ItemStore(mContext);
+        final ContentDownload download = new ContentDownload();
+        download.setShowProgress(showProgress);
+        mDownload = download;
+        download.generateContent(mContext, rssUrl, database, new ContentDownload.Listener() {
+            @Override
+            public void onContentReady(boolean success) {
+                database.close();
+
+                // A cancelled download finishing late must not notify the listeners of the current one.
+                if (download != mDownload) return;
+                mDownload = null;
+                mRssUrl = null;
+                List<ContentDownload.Listener> listeners = new ArrayList<>(mListeners);
+                mListeners.clear();
+                for (ContentDownload.Listener l : listeners) l.onContentReady(success);
+
+                // Unless one of the listeners has requested another download.
+                if (mDownload == null) {
+                    List<Runnable> idleListeners = new ArrayList<>(mIdleListeners);
+                    mIdleListeners.clear();
+                    for (Runnable l : idleListeners) l.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops notifying the given listener (e.g. it belongs to a destroyed activity).
+     * The download itself continues.
+     */
+    public void removeListener(ContentDownload.Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Runs the given listener once no download is in progress: right away if there is none, otherwise when the
+     * download in progress (or the one that replaces it) completes.
+     */
+    public void notifyWhenIdle(Runnable listener) {
+        if (mDownload == null) listener.run();
+        else if (!mIdleListeners.contains(listener)) mIdleListeners.add(listener);
+    }
+
+    /**
+     * @return The feed being downloaded, null if no download is in progress.
+     */
+    public String getSyncingUrl() {
+        return mRssUrl;
+    }
+
+    /**
+     * @return Whether a download is in progress.
+     */
+    public boolean isSyncing() {
+        return mDownload != null;
+    }
+
+    private static SyncCoordinator sInstance;
+
+    /** Application context, used by the downloads and to open the database. */
+    private final Context mContext;
+
+    /** The download in progress, null if none. */
+    private ContentDownload mDownload;
+
+    /** The feed being downloaded, null if none. */
+    private String mRssUrl;
+
+    /** Those waiting for the download in progress. */
+    private final List<ContentDownload.Listener> mListeners = new ArrayList<>();
+
+    /** Those waiting for no download to be in progress, see {@link #notifyWhenIdle}. */
+    private final List<Runnable> mIdleListeners = new ArrayList<>();
+}
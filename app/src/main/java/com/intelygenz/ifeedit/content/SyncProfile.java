@@ -0,0 +1,167 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.telephony.TelephonyManager;
+
+/**
+ * How much a sync downloads, chosen from the connection it runs on: everything on unmetered
+ * networks; on metered or slow ones only a few images (the rest are deferred to a later sync,
+ * see {@link ContentDownload}) and smaller ones.
+ * The limits of each profile are configured by the user in the settings.
+ */
+public class SyncProfile {
+
+    /** Kinds of connection, each with its own profile. */
+    public static final String UNMETERED = "unmetered";
+    public static final String METERED = "metered";
+    public static final String SLOW = "slow";
+
+    /** Preference keys, see res/xml/pref_general.xml. */
+    public static final String PREF_UNMETERED_IMAGE_KB = "settings_sync_unmetered_image_kb";
+    public static final String PREF_METERED_IMAGES = "settings_sync_metered_images";
+    public static final String PREF_METERED_IMAGE_KB = "settings_sync_metered_image_kb";
+    public static final String PREF_SLOW_IMAGES = "settings_sync_slow_images";
+    public static final String PREF_SLOW_IMAGE_KB = "settings_sync_slow_image_kb";
+
+    /** Debug setting that replaces the actual connection by one of the kinds above, empty for none. */
+    public static final String PREF_SIMULATED_CONNECTION = "settings_debug_connection";
+
+    /** Defaults used when the user has not configured the limits. */
+    public static final int DEFAULT_UNMETERED_IMAGE_KB = 1024;
+    public static final int DEFAULT_METERED_IMAGES = 20;
+    public static final int DEFAULT_METERED_IMAGE_KB = 256;
+    public static final int DEFAULT_SLOW_IMAGES = 0;
+    public static final int DEFAULT_SLOW_IMAGE_KB = 128;
+
+    /**
+     * @param connection One of {@link #UNMETERED}, {@link #METERED} or {@link #SLOW}.
+     * @param maxImages Maximum images downloaded by one sync, no limit if negative.
+     * @param maxImageBytes Larger images are not kept.
+     * @param connectTimeoutMs See {@link java.net.URLConnection#setConnectTimeout}.
+     * @param readTimeoutMs See {@link java.net.URLConnection#setReadTimeout}.
+     */
+    public SyncProfile(String connection, int maxImages, int maxImageBytes, int connectTimeoutMs, int readTimeoutMs) {
+        mConnection = connection;
+        mMaxImages = maxImages;
+        mMaxImageBytes = Math.max(maxImageBytes, 0);
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Reads the profile of the current connection (or the simulated one) configured by the user in the settings.
+     */
+    public static SyncProfile fromConnectivity(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String connection = prefs.getString(PREF_SIMULATED_CONNECTION, "");
+        if (!UNMETERED.equals(connection) && !METERED.equals(connection) && !SLOW.equals(connection)) {
+            ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = manager.getActiveNetworkInfo();
+            connection = select(network != null && network.isConnected(), network != null ? network.getType() : -1,
+                    network != null ? network.getSubtype() : -1, ConnectivityManagerCompat.isActiveNetworkMetered(manager));
+        }
+        return fromPreferences(prefs, connection);
+    }
+
+    /**
+     * @param type The type of the active network, see {@link ConnectivityManager}.
+     * @param subtype Its subtype, see {@link TelephonyManager} for mobile networks.
+     * @return The kind of connection the profile is chosen for.
+     */
+    public static String select(boolean connected, int type, int subtype, boolean metered) {
+        // Not connected: the sync fails anyway, as soon as possible.
+        if (!connected) return METERED;
+        if (type == ConnectivityManager.TYPE_MOBILE && isSlowMobile(subtype)) return SLOW;
+        return metered ? METERED : UNMETERED;
+    }
+
+    /**
+     * @return The profile of the given kind of connection, with the limits configured in the settings.
+     */
+    public static SyncProfile fromPreferences(SharedPreferences prefs, String connection) {
+        if (SLOW.equals(connection)) {
+            // Slow links need more time for the same bytes.
+            return new SyncProfile(SLOW, readInt(prefs, PREF_SLOW_IMAGES, DEFAULT_SLOW_IMAGES),
+                    readInt(prefs, PREF_SLOW_IMAGE_KB, DEFAULT_SLOW_IMAGE_KB) * 1024, 30000, 20000);
+        }
+        if (METERED.equals(connection)) {
+            return new SyncProfile(METERED, readInt(prefs, PREF_METERED_IMAGES, DEFAULT_METERED_IMAGES),
+                    readInt(prefs, PREF_METERED_IMAGE_KB, DEFAULT_METERED_IMAGE_KB) * 1024, 15000, 10000);
+        }
+        return new SyncProfile(UNMETERED, -1,
+                readInt(prefs, PREF_UNMETERED_IMAGE_KB, DEFAULT_UNMETERED_IMAGE_KB) * 1024, 15000, 10000);
+    }
+
+    public String getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * @return Whether a sync that has already downloaded the given number of images may download one more.
+     */
+    public boolean allowsImage(int downloaded) {
+        return mMaxImages < 0 || downloaded < mMaxImages;
+    }
+
+    /**
+     * @return Whether the images deferred by previous syncs are downloaded by this one.
+     */
+    public boolean fillsDeferredImages() {
+        return mMaxImages < 0;
+    }
+
+    public int getMaxImageBytes() {
+        return mMaxImageBytes;
+    }
+
+    public int getConnectTimeoutMs() {
+        return mConnectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return mReadTimeoutMs;
+    }
+
+    @Override
+    public String toString() {
+        return mConnection + " (images " + (mMaxImages < 0 ? "all" : String.valueOf(mMaxImages)) + ", up to " + mMaxImageBytes / 1024 + "KB)";
+    }
+
+    /**
+     * 2G networks, where a single image takes seconds.
+     */
+    private static boolean isSlowMobile(int subtype) {
+        switch (subtype) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Edit text preferences store numbers as strings, which may also be empty or invalid.
+     */
+    private static int readInt(SharedPreferences prefs, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(prefs.getString(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private final String mConnection;
+    private final int mMaxImages;
+    private final int mMaxImageBytes;
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+}
@@ -0,0 +1,76 @@
+package com.intelygenz.ifeedit.display;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Decodes images to (about) the size they are displayed at instead of their full size.
+ * Opaque formats (JPEG) are decoded with 2 bytes per pixel and the memory of bitmaps no longer
+ * displayed is reused through a {@link BitmapPool}.
+ */
+class BitmapDecoder {
+
+    BitmapDecoder(BitmapPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Decodes an image to be displayed cropped to the given size.
+     * The result is subsampled by a power of two, so it is never smaller than the target but at
+     * most twice as big.
+     * @param data The encoded image.
+     * @param targetWidth Width of the view the image is displayed in, 0 if unknown.
+     * @param targetHeight Height of the view the image is displayed in, 0 if unknown.
+     * @return The image or null if it could not be decoded. Give it back to the pool when not displayed anymore.
+     */
+    Bitmap decode(byte[] data, int targetWidth, int targetHeight) {
+        UiTrace.begin(UiTrace.IMAGE_DECODE);
+        try {
+            return decodeSampled(data, targetWidth, targetHeight);
+        } finally {
+            UiTrace.end();
+        }
+    }
+
+    private Bitmap decodeSampled(byte[] data, int targetWidth, int targetHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+        options.inPreferredConfig = "image/jpeg".equals(options.outMimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        // Before KitKat a bitmap can only be reused to decode an image of its very same size.
+        if (options.inSampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = mPool.get(width, height, options.inPreferredConfig);
+        }
+
+        try {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (bitmap == null) mPool.put(options.inBitmap);
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap was not suitable after all, decode into a new one.
+            mPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Largest power of two that keeps the subsampled image covering the target size.
+     */
+    private static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 && targetHeight <= 0) return sampleSize;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private final BitmapPool mPool;
+}
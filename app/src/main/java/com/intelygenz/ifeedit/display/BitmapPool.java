@@ -0,0 +1,101 @@
+package com.intelygenz.ifeedit.display;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.intelygenz.ifeedit.content.CacheRegistry;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps bitmaps that are no longer displayed so their memory can be reused by the next decode
+ * ({@link android.graphics.BitmapFactory.Options#inBitmap}) instead of allocating a new one.
+ * Bitmaps are evicted (and recycled) from the oldest when the pool exceeds its size, given by the
+ * {@link CacheRegistry}.
+ */
+class BitmapPool implements CacheRegistry.Cache {
+
+    /**
+     * Takes from the pool a bitmap able to hold a decoded image, if there is one.
+     * Before KitKat the bitmap must have exactly the same size and configuration as the image,
+     * afterwards it just needs to be big enough.
+     * @return The bitmap to decode into (removed from the pool), or null if none fits.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int requiredBytes = width * height * bytesPerPixel(config);
+        Iterator<Bitmap> it = mBitmaps.iterator();
+        while (it.hasNext()) {
+            Bitmap candidate = it.next();
+            boolean fits;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) fits = candidate.getAllocationByteCount() >= requiredBytes;
+            else fits = candidate.getWidth() == width && candidate.getHeight() == height && candidate.getConfig() == config;
+            if (fits) {
+                it.remove();
+                mBytes -= sizeOf(candidate);
+                mStats.hit();
+                return candidate;
+            }
+        }
+        mStats.miss();
+        return null;
+    }
+
+    /**
+     * Gives a bitmap that is not displayed anymore to the pool.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return;
+        int size = sizeOf(bitmap);
+        if (size > mMaxBytes) return;
+        mBitmaps.addLast(bitmap);
+        mBytes += size;
+        trimTo(mMaxBytes);
+    }
+
+    /**
+     * Evicts the oldest bitmaps until the pool holds no more than the given memory.
+     */
+    @Override
+    public synchronized void trimTo(int maxBytes) {
+        while (mBytes > maxBytes && !mBitmaps.isEmpty()) {
+            Bitmap evicted = mBitmaps.removeFirst();
+            mBytes -= sizeOf(evicted);
+            evicted.recycle();
+            mStats.evicted();
+        }
+    }
+
+    @Override
+    public synchronized int getSizeBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public synchronized void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    @Override
+    public CacheRegistry.Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * @return Memory in bytes held by the bitmaps.
+     */
+    static int sizeOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) return bitmap.getAllocationByteCount();
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+
+    private int mMaxBytes;
+    private int mBytes;
+    private final CacheRegistry.Stats mStats = new CacheRegistry.Stats();
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+}
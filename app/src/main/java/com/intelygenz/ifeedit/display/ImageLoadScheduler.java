@@ -0,0 +1,431 @@
+package com.intelygenz.ifeedit.display;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.intelygenz.ifeedit.content.CacheRegistry;
+import com.intelygenz.ifeedit.content.ItemProvider;
+import com.intelygenz.ifeedit.content.ItemStore;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and decodes the list images in a background thread, in the order the user needs them:
+ * first the rows on screen (from the top), then the rows just off screen in the scroll direction
+ * and finally a few rows ahead that are not even bound yet (prefetched and kept until bound).
+ * While the list flings only the rows on screen are loaded, and requests for rows far from the
+ * screen are dropped so they take no time from the visible ones.
+ * All the methods must be called from the main thread.
+ */
+class ImageLoadScheduler {
+
+    /**
+     * A row waiting for its image.
+     */
+    interface Target {
+        /**
+         * @return The id of the item the row is displaying now, the image is ignored if it is another one.
+         */
+        long getBoundId();
+
+        /**
+         * @param bitmap The decoded image, null if the item has no image. Owned by the row from now on.
+         */
+        void setImage(Bitmap bitmap);
+    }
+
+    /**
+     * The rows of the list, to find the items to prefetch.
+     */
+    interface Rows {
+        int getItemCount();
+
+        long getItemId(int position);
+
+        /**
+         * @return Whether the item at the given position has an image to load.
+         */
+        boolean hasImage(int position);
+    }
+
+    ImageLoadScheduler(Rows rows, BitmapDecoder decoder, BitmapPool pool) {
+        mRows = rows;
+        mDecoder = decoder;
+        mPool = pool;
+    }
+
+    /**
+     * Starts loading, following the scroll of the given list.
+     */
+    void attach(RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+        mResolver = recyclerView.getContext().getApplicationContext().getContentResolver();
+        recyclerView.addOnScrollListener(mScrollListener);
+        Thread worker = new Thread(mWorker, "ImageLoader");
+        worker.setPriority(Thread.NORM_PRIORITY - 1);
+        synchronized (this) {
+            mWorkerThread = worker;
+        }
+        worker.start();
+    }
+
+    /**
+     * Stops loading, the pending requests are dropped.
+     */
+    void detach() {
+        if (mRecyclerView == null) return;
+        mRecyclerView.removeOnScrollListener(mScrollListener);
+        mRecyclerView = null;
+        synchronized (this) {
+            mWorkerThread = null;
+            mBound.clear();
+            mPrefetch.clear();
+            for (Bitmap bitmap : mPrefetched.values()) mPool.put(bitmap);
+            mPrefetched.clear();
+            mPrefetchedBytes = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Requests the image of a row, replacing any previous request of the same row.
+     * @param position The adapter position of the row.
+     * @param id The item "_id".
+     * @param width Size the image is displayed at.
+     */
+    synchronized void load(Target target, int position, long id, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mBound.put(target, new Request(target, position, id, width, height));
+        mPrefetch.remove(id);
+        notifyAll();
+    }
+
+    /**
+     * Drops the request of a row that is not displayed anymore.
+     */
+    synchronized void cancel(Target target) {
+        mBound.remove(target);
+    }
+
+    /**
+     * @param id The item "_id".
+     * @return The image of the item if it was prefetched (owned by the caller from now on), null otherwise.
+     */
+    synchronized Bitmap takePrefetched(long id) {
+        Bitmap bitmap = mPrefetched.remove(id);
+        if (bitmap != null) {
+            mPrefetchedBytes -= BitmapPool.sizeOf(bitmap);
+            mPrefetchedCache.getStats().hit();
+        } else {
+            mPrefetchedCache.getStats().miss();
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return The prefetched images as a cache, to be registered in the {@link CacheRegistry}.
+     */
+    CacheRegistry.Cache getPrefetchedCache() {
+        return mPrefetchedCache;
+    }
+
+    /**
+     * Gives up the oldest prefetched images, their memory goes back to the pool.
+     */
+    private synchronized void trimPrefetched(int maxBytes) {
+        Iterator<Bitmap> it = mPrefetched.values().iterator();
+        while (mPrefetchedBytes > maxBytes && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+            mPrefetchedBytes -= BitmapPool.sizeOf(bitmap);
+            mPool.put(bitmap);
+            mPrefetchedCache.getStats().evicted();
+        }
+    }
+
+    private final CacheRegistry.Cache mPrefetchedCache = new CacheRegistry.Cache() {
+        @Override
+        public int getSizeBytes() {
+            synchronized (ImageLoadScheduler.this) {
+                return mPrefetchedBytes;
+            }
+        }
+
+        @Override
+        public void setMaxBytes(int maxBytes) {
+            synchronized (ImageLoadScheduler.this) {
+                mPrefetchedMaxBytes = maxBytes;
+                trimPrefetched(maxBytes);
+            }
+        }
+
+        @Override
+        public void trimTo(int maxBytes) {
+            trimPrefetched(maxBytes);
+        }
+
+        @Override
+        public CacheRegistry.Stats getStats() {
+            return mStats;
+        }
+
+        private final CacheRegistry.Stats mStats = new CacheRegistry.Stats();
+    };
+
+    /**
+     * Follows the visible range and the fling state of the list.
+     */
+    private final RecyclerView.OnScrollListener mScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+            synchronized (ImageLoadScheduler.this) {
+                mFlinging = newState == RecyclerView.SCROLL_STATE_SETTLING;
+                ImageLoadScheduler.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) return;
+            LinearLayoutManager layout = (LinearLayoutManager) recyclerView.getLayoutManager();
+            updateRange(layout.findFirstVisibleItemPosition(), layout.findLastVisibleItemPosition(), dy);
+        }
+    };
+
+    /**
+     * Drops the prefetch requests left behind and requests the rows ahead.
+     */
+    private synchronized void updateRange(int first, int last, int dy) {
+        if (first == RecyclerView.NO_POSITION) return;
+        mFirstVisible = first;
+        mLastVisible = last;
+        if (dy != 0) mDirection = dy > 0 ? 1 : -1;
+
+        Iterator<Request> it = mPrefetch.values().iterator();
+        while (it.hasNext()) {
+            if (!inWindow(it.next().position)) it.remove();
+        }
+
+        if (mWidth > 0 || mHeight > 0) {
+            for (int i = 1; i <= PREFETCH_WINDOW; i++) {
+                int position = mDirection > 0 ? last + i : first - i;
+                if (position < 0 || position >= mRows.getItemCount() || !mRows.hasImage(position)) continue;
+                long id = mRows.getItemId(position);
+                if (mPrefetch.containsKey(id) || mPrefetched.containsKey(id) || isBound(id)) continue;
+                mPrefetch.put(id, new Request(null, position, id, mWidth, mHeight));
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return Whether the position is on screen or near enough to be loaded (even if paused now).
+     */
+    private boolean inWindow(int position) {
+        return position >= mFirstVisible - PREFETCH_WINDOW && position <= mLastVisible + PREFETCH_WINDOW;
+    }
+
+    private boolean isBound(long id) {
+        for (Request request : mBound.values()) {
+            if (request.id == id) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Order in which a position is loaded, lowest first: the visible rows from the top, then the
+     * nearest rows off screen (those ahead in the scroll direction before those behind).
+     * @return The rank, negative if the position must not be loaded now.
+     */
+    private int rank(int position) {
+        // Nothing laid out yet, the first rows are the visible ones.
+        if (mLastVisible < 0) return position;
+        if (position >= mFirstVisible && position <= mLastVisible) return position - mFirstVisible;
+        if (mFlinging || !inWindow(position)) return -1;
+        boolean ahead = mDirection > 0 ? position > mLastVisible : position < mFirstVisible;
+        int distance = position > mLastVisible ? position - mLastVisible : mFirstVisible - position;
+        return OFFSCREEN_RANK + distance * 2 - (ahead ? 1 : 0);
+    }
+
+    /**
+     * @return The request to load next, null if there is none that can be loaded now.
+     */
+    private Request next() {
+        Request best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (Request request : mBound.values()) {
+            int rank = rank(request.position);
+            if (!request.started && rank >= 0 && rank < bestRank) {
+                best = request;
+                bestRank = rank;
+            }
+        }
+        // Bound rows go before prefetched ones at the same distance.
+        for (Request request : mPrefetch.values()) {
+            int rank = rank(request.position);
+            if (!request.started && rank >= 0 && rank + 1 < bestRank) {
+                best = request;
+                bestRank = rank + 1;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Loads the requests one by one, best ranked first.
+     */
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final Request request;
+                synchronized (ImageLoadScheduler.this) {
+                    Request next = next();
+                    while (isCurrentWorker() && next == null) {
+                        try {
+                            ImageLoadScheduler.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        next = next();
+                    }
+                    if (!isCurrentWorker()) return;
+                    request = next;
+                    request.started = true;
+                }
+                final Bitmap bitmap = load(request);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(request, bitmap);
+                    }
+                });
+            }
+        }
+    };
+
+    /**
+     * @return Whether the calling thread is the worker of the current attachment (a worker of a
+     *         previous one may still be finishing its last load).
+     */
+    private boolean isCurrentWorker() {
+        return mWorkerThread == Thread.currentThread();
+    }
+
+    /**
+     * Reads the image of the item from the database and decodes it. Runs in the worker thread.
+     */
+    private Bitmap load(Request request) {
+        byte[] data = null;
+        Cursor cursor = mResolver.query(ItemProvider.itemUri(request.id), IMAGE_COLS, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) data = cursor.getBlob(0);
+            cursor.close();
+        }
+        if (data == null) return null;
+        return mDecoder.decode(data, request.width, request.height);
+    }
+
+    /**
+     * Gives the image to the row that requested it, if it still displays the same item, or keeps it
+     * until bound if it was prefetched. Otherwise its memory goes back to the pool.
+     */
+    private synchronized void deliver(Request request, Bitmap bitmap) {
+        if (request.target != null) {
+            if (mBound.get(request.target) == request) {
+                mBound.remove(request.target);
+                if (request.target.getBoundId() == request.id) {
+                    request.target.setImage(bitmap);
+                    return;
+                }
+            }
+        } else if (mPrefetch.get(request.id) == request) {
+            mPrefetch.remove(request.id);
+            if (bitmap != null) {
+                mPrefetched.put(request.id, bitmap);
+                mPrefetchedBytes += BitmapPool.sizeOf(bitmap);
+                trimPrefetched(mPrefetchedMaxBytes);
+                return;
+            }
+        }
+        if (bitmap != null) mPool.put(bitmap);
+    }
+
+    private static class Request {
+        Request(Target target, int position, long id, int width, int height) {
+            this.target = target;
+            this.position = position;
+            this.id = id;
+            this.width = width;
+            this.height = height;
+        }
+
+        /** The row waiting for the image, null for a prefetch. */
+        final Target target;
+        final int position;
+        final long id;
+        final int width;
+        final int height;
+        boolean started;
+    }
+
+    /** Rows beyond the screen that are loaded ahead. */
+    private static final int PREFETCH_WINDOW = 4;
+
+    /** Rank of the rows just off screen, after any visible row. */
+    private static final int OFFSCREEN_RANK = 1000;
+
+    private static final String[] IMAGE_COLS = new String[] { ItemStore.DB_COL_IMAGE_CONTENT };
+
+    private final Rows mRows;
+    private final BitmapDecoder mDecoder;
+    private final BitmapPool mPool;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private RecyclerView mRecyclerView;
+    private volatile ContentResolver mResolver;
+
+    /** The thread loading the requests while attached. */
+    private Thread mWorkerThread;
+
+    /** Visible range and scroll state of the list. */
+    private int mFirstVisible = RecyclerView.NO_POSITION;
+    private int mLastVisible = RecyclerView.NO_POSITION;
+    private int mDirection = 1;
+    private boolean mFlinging;
+
+    /** Size of the last requested image, used for the prefetched ones. */
+    private int mWidth;
+    private int mHeight;
+
+    /** Requests of the bound rows. */
+    private final Map<Target, Request> mBound = new HashMap<>();
+
+    /** Requests of the rows ahead, by item id. */
+    private final Map<Long, Request> mPrefetch = new HashMap<>();
+
+    /** Memory held by the prefetched images, and the most they may hold (set by the registry). */
+    private int mPrefetchedBytes;
+    private int mPrefetchedMaxBytes = Integer.MAX_VALUE;
+
+    /** Prefetched images waiting for their rows to be bound, the oldest are given up first. */
+    @SuppressWarnings("serial")
+    private final Map<Long, Bitmap> mPrefetched = new LinkedHashMap<Long, Bitmap>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Bitmap> eldest) {
+            if (size() <= PREFETCH_WINDOW * 2) return false;
+            mPrefetchedBytes -= BitmapPool.sizeOf(eldest.getValue());
+            mPool.put(eldest.getValue());
+            mPrefetchedCache.getStats().evicted();
+            return true;
+        }
+    };
+}
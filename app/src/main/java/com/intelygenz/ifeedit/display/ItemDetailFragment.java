@@ -1,20 +1,32 @@
 package com.intelygenz.ifeedit.display;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.CollapsingToolbarLayout;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.Fragment;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.WebView;
 
 import com.intelygenz.ifeedit.R;
+import com.intelygenz.ifeedit.content.CacheRegistry;
+import com.intelygenz.ifeedit.content.HtmlSanitizer;
+import com.intelygenz.ifeedit.content.ItemBodies;
+import com.intelygenz.ifeedit.content.ItemDescription;
+import com.intelygenz.ifeedit.content.ItemProvider;
 import com.intelygenz.ifeedit.content.ItemStore;
+import com.intelygenz.ifeedit.content.LocalImageCache;
+import com.intelygenz.ifeedit.content.MemoryCache;
 
 /**
  * A fragment representing a single Item detail screen.
@@ -43,33 +55,24 @@ public class ItemDetailFragment extends Fragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
+        UiTrace.begin(UiTrace.DETAIL_CREATE_VIEW);
+        try {
+            return createView(inflater, container);
+        } finally {
+            UiTrace.end();
+        }
+    }
+
+    private View createView(LayoutInflater inflater, ViewGroup container) {
         View rootView = inflater.inflate(R.layout.fragment_item_detail, container, false);
 
         if (getArguments().containsKey(ARG_ITEM_ID)) {
-            // Load the content of the requested item in database.
-            int id = getArguments().getInt(ARG_ITEM_ID);
-            // TODO: share the ItemStore from activity and close it on activity destroy.
-            Cursor cursor = (new ItemStore(getContext())).get().query(ItemStore.DB_TABLE_NAME, ItemStore.DB_COLS, "_id = " + id, null, null, null, null);
-            String content = "No content";
-            if (cursor.moveToFirst()) {
-                content = cursor.getString(cursor.getColumnIndex(ItemStore.DB_COL_DESCRIPTION));
-                // Remember this link to the cursor can be closed in the method.
-                mLink = cursor.getString(cursor.getColumnIndex(ItemStore.DB_COL_LINK));
-            }
-
-            // Fill in the web view.
-            WebView wb = (WebView) rootView.findViewById(R.id.detail_webview);
-            wb.getSettings().setUseWideViewPort(false);
-            wb.getSettings().setLoadWithOverviewMode(true); // Note: this line tries to fit images on screen, but not working.
-            wb.loadData(content, "text/html; charset=utf-8", null);
-
-            // Display the item title on top.
-            Activity activity = this.getActivity();
-            CollapsingToolbarLayout appBarLayout = (CollapsingToolbarLayout) activity.findViewById(R.id.toolbar_layout);
-            if (appBarLayout != null) {
-                appBarLayout.setTitle(cursor.getString(cursor.getColumnIndex(ItemStore.DB_COL_TITLE)));
-            }
-            cursor.close();
+            mWebView = (WebView) rootView.findViewById(R.id.detail_webview);
+            // The page declares a device-width viewport and scales its images to it, see HtmlSanitizer.
+            mWebView.getSettings().setUseWideViewPort(true);
+            mWebView.getSettings().setLoadWithOverviewMode(true);
+            mWebView.getSettings().setJavaScriptEnabled(false);
+            showItem();
 
             // Launch browser floating button.
             FloatingActionButton fab = (FloatingActionButton) rootView.findViewById(R.id.fab_fragment);
@@ -84,13 +87,224 @@ public class ItemDetailFragment extends Fragment {
         return rootView;
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        if (mWebView == null) return;
+        Uri uri = ItemProvider.itemUri(getArguments().getInt(ARG_ITEM_ID));
+        getContext().getContentResolver().registerContentObserver(uri, false, mObserver);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        getContext().getContentResolver().unregisterContentObserver(mObserver);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mLoadTask != null) mLoadTask.cancel(false);
+        mLoadTask = null;
+    }
+
+    /**
+     * Displays the item, right away if its page was built recently. Otherwise the page is built in the
+     * background (reading the item through the provider, maybe a long body file, and sanitizing it).
+     */
+    private void showItem() {
+        int id = getArguments().getInt(ARG_ITEM_ID);
+        Page page = getPageCache(getContext()).get(id);
+        if (page != null && page.generation == ItemStore.getGeneration()) {
+            showPage(page);
+            return;
+        }
+        // The last requested page is the only one of interest.
+        if (mLoadTask != null) mLoadTask.cancel(false);
+        mLoadTask = new LoadTask(getContext().getApplicationContext(), id);
+        mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Displays a page in the web view, only reloaded if the displayed content has changed (not just the item state).
+     */
+    private void showPage(Page page) {
+        String title = page.title;
+        if (mShown && TextUtils.equals(title, mTitle) && TextUtils.equals(page.html, mContent) && TextUtils.equals(page.link, mLink)) return;
+        mShown = true;
+        mTitle = title;
+        mContent = page.html;
+        mLink = page.link;
+
+        // Fill in the web view.
+        // Images point to their local copies (see LocalImages), the file base URL lets the page load them.
+        mWebView.loadDataWithBaseURL("file:///", page.html, "text/html", "utf-8", null);
+
+        // Display the item title on top.
+        Activity activity = this.getActivity();
+        CollapsingToolbarLayout appBarLayout = (CollapsingToolbarLayout) activity.findViewById(R.id.toolbar_layout);
+        if (appBarLayout != null) {
+            appBarLayout.setTitle(title);
+        }
+    }
+
+    /**
+     * Builds the page of an item in the background, then displays it if the fragment is still there.
+     */
+    private class LoadTask extends AsyncTask<Void, Void, Page> {
+        LoadTask(Context context, int id) {
+            mContext = context;
+            mId = id;
+        }
+
+        @Override
+        protected Page doInBackground(Void... params) {
+            return loadPage(mContext, mId);
+        }
+
+        @Override
+        protected void onPostExecute(Page page) {
+            if (mLoadTask != this) return;
+            mLoadTask = null;
+            getPageCache(mContext).put(mId, page);
+            if (isAdded() && mWebView != null) showPage(page);
+        }
+
+        private final Context mContext;
+        private final int mId;
+    }
+
+    /**
+     * Reads the item and builds the page displaying it. Runs in a background thread.
+     */
+    private static Page loadPage(Context context, int id) {
+        // The generation is taken before reading: if the item changes meanwhile it will be read again.
+        long generation = ItemStore.getGeneration();
+        Cursor cursor = context.getContentResolver().query(ItemProvider.itemUri(id), ItemStore.DB_COLS, null, null, null);
+        String title = null;
+        String content = "No content";
+        String link = null;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                title = cursor.getString(cursor.getColumnIndex(ItemStore.DB_COL_TITLE));
+                // Stored compressed, decompressed only here.
+                content = ItemDescription.read(cursor);
+                if (content == null) content = "No content";
+                link = cursor.getString(cursor.getColumnIndex(ItemStore.DB_COL_LINK));
+
+                // The stored description is truncated if it was too long, the whole one is in a file.
+                String bodyFile = cursor.getString(cursor.getColumnIndex(ItemStore.DB_COL_BODY_FILE));
+                String body = bodyFile != null ? new ItemBodies(context).read(bodyFile) : null;
+                if (body != null) content = body;
+                content = HtmlSanitizer.sanitize(content, new LocalImages(context,
+                        cursor.getString(cursor.getColumnIndex(ItemStore.DB_COL_IMAGE_URL)),
+                        cursor.getBlob(cursor.getColumnIndex(ItemStore.DB_COL_IMAGE_CONTENT))));
+            }
+            cursor.close();
+        }
+        return new Page(generation, title, HtmlSanitizer.toDisplayPage(content), link);
+    }
+
+    /**
+     * Points the images of a description to the local copies made when the item was stored, if they are still there.
+     * The item image is stored in the database instead, it is copied the first time it is displayed.
+     */
+    private static class LocalImages implements HtmlSanitizer.ImageResolver {
+        LocalImages(Context context, String itemImageUrl, byte[] itemImage) {
+            mImageCache = new LocalImageCache(context);
+            mItemImageUrl = itemImageUrl;
+            mItemImage = itemImage;
+        }
+
+        @Override
+        public String resolve(String imageUrl) {
+            String local = mImageCache.getLocalUrl(imageUrl);
+            if (local == null && mItemImage != null && imageUrl.equals(mItemImageUrl) && mImageCache.put(imageUrl, mItemImage)) {
+                local = mImageCache.getLocalUrl(imageUrl);
+            }
+            return local;
+        }
+
+        private final LocalImageCache mImageCache;
+        private final String mItemImageUrl;
+        private final byte[] mItemImage;
+    }
+
+    /**
+     * Displays the item again when it changes in the database.
+     */
+    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (!isAdded() || mWebView == null) return;
+            getPageCache(getContext()).remove(getArguments().getInt(ARG_ITEM_ID));
+            showItem();
+        }
+    };
+
+    /**
+     * What the detail of an item displays, ready to be loaded in the web view.
+     */
+    private static class Page {
+        Page(long generation, String title, String html, String link) {
+            this.generation = generation;
+            this.title = title;
+            this.html = html;
+            this.link = link;
+        }
+
+        /** The database generation it was read from, see {@link ItemStore#getGeneration()}. */
+        final long generation;
+        final String title;
+        final String html;
+        final String link;
+    }
+
+    /**
+     * The pages of the items viewed recently, shared by all the detail fragments so going back to an
+     * item does not read and sanitize it again.
+     */
+    private static synchronized MemoryCache<Integer, Page> getPageCache(Context context) {
+        if (sPages == null) {
+            sPages = new MemoryCache<Integer, Page>() {
+                @Override
+                protected int sizeOf(Page page) {
+                    return (length(page.title) + page.html.length() + length(page.link)) * 2;
+                }
+
+                private int length(String text) {
+                    return text != null ? text.length() : 0;
+                }
+            };
+            CacheRegistry.getInstance(context).register("Detail pages", CacheRegistry.PRIORITY_NORMAL, PAGE_CACHE_SHARE, sPages);
+        }
+        return sPages;
+    }
+
+    private static MemoryCache<Integer, Page> sPages;
+
+    /** Part of the cache memory the pages may take (percent). */
+    private static final int PAGE_CACHE_SHARE = 10;
+
     /**
      * Launcher an external browser to let the user navigate into the item's source.
      */
     public void launchBrowser() {
+        // Not known until the page is loaded.
+        if (mLink == null) return;
         startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(mLink)));
     }
 
     /** The URL to launch in the external browser. */
     private String mLink;
+
+    /** The displayed content, to tell whether a change in the item must be displayed. */
+    private boolean mShown;
+    private String mTitle;
+    private String mContent;
+
+    private WebView mWebView;
+
+    /** Builds the page of the item when it is not in the cache, null when not running. */
+    private LoadTask mLoadTask;
 }
@@ -17,8 +17,12 @@ import android.view.MenuItem;
 import android.view.View;
 
 import com.intelygenz.ifeedit.R;
+import com.intelygenz.ifeedit.content.CacheRegistry;
 import com.intelygenz.ifeedit.content.ContentDownload;
-import com.intelygenz.ifeedit.content.ItemStore;
+import com.intelygenz.ifeedit.content.FirstScreenSnapshot;
+import com.intelygenz.ifeedit.content.HotPathBudget;
+import com.intelygenz.ifeedit.content.QueryProfiler;
+import com.intelygenz.ifeedit.content.SyncCoordinator;
 
 /**
  * An activity representing a list of Items. This activity
@@ -40,6 +44,7 @@ public class ItemListActivity extends AppCompatActivity implements ItemListFragm
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        UiTrace.begin(UiTrace.LIST_ACTIVITY_CREATE);
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_item_app_bar);
 
@@ -69,14 +74,28 @@ public class ItemListActivity extends AppCompatActivity implements ItemListFragm
             mItemListFragment.setActivateOnItemClick(true);
         }
 
-        // Fill in content when the app starts.
-        mItemListFragment.refreshFromDb(null);
+        // Fill in content when the app starts: what the first screen showed last time right away,
+        // replaced by the database content as soon as it is loaded in the background.
+        // After a configuration change the retained fragment still has it (or is loading it): nothing to read.
+        if (!mItemListFragment.hasContent()) {
+            mItemListFragment.showSnapshot(FirstScreenSnapshot.read(this));
+            mItemListFragment.refreshFromDb(null);
+        }
+
+        // A sync started by the previous activity (e.g. before a rotation) keeps running: wait for it again.
+        String syncing = SyncCoordinator.getInstance(this).getSyncingUrl();
+        if (syncing != null) waitForSync(syncing);
+        UiTrace.end();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
 
+        // The debug mode of UI tracing may have been changed in the settings.
+        UiTrace.setDebugEnabled(PreferenceManager.getDefaultSharedPreferences(this).getBoolean(UiTrace.PREF_DEBUG, false));
+        QueryProfiler.setEnabled(PreferenceManager.getDefaultSharedPreferences(this).getBoolean(QueryProfiler.PREF_ENABLED, false));
+
         // Check the current feed URL in preferences, it may have changed.
         final SharedPreferences activityPrefs = getSharedPreferences("ItemListActivity", Activity.MODE_PRIVATE);
         final String current = PreferenceManager.getDefaultSharedPreferences(this).getString("settings_feed_url", getString(R.string.pref_default_feed_url));
@@ -93,27 +112,51 @@ public class ItemListActivity extends AppCompatActivity implements ItemListFragm
      * updating the item list when completed.
      */
     private void reloadContentFromUrl() {
-        final SharedPreferences activityPrefs = getSharedPreferences("ItemListActivity", Activity.MODE_PRIVATE);
-        final String current = PreferenceManager.getDefaultSharedPreferences(this).getString("settings_feed_url", getString(R.string.pref_default_feed_url));
+        String current = PreferenceManager.getDefaultSharedPreferences(this).getString("settings_feed_url", getString(R.string.pref_default_feed_url));
 
         // Time to download new content from the new URL.
         mItemListFragment.showLoadingIndicator();
-        ContentDownload cd = new ContentDownload();
-        final ItemStore database = new ItemStore(this);
-        cd.generateContent(this, current, database, new ContentDownload.Listener() {
+        waitForSync(current);
+    }
+
+    /**
+     * Requests the download of the given feed, updating the item list when completed.
+     * The coordinator joins this request with a download of the same URL already in progress.
+     */
+    private void waitForSync(final String rssUrl) {
+        final SharedPreferences activityPrefs = getSharedPreferences("ItemListActivity", Activity.MODE_PRIVATE);
+        SyncCoordinator.getInstance(this).removeListener(mSyncListener);
+        mSyncListener = new ContentDownload.Listener() {
             @Override
             public void onContentReady(boolean success) {
-                try {
-                    database.close();
-                    // Show the new content in the item list.
-                    if (success) activityPrefs.edit().putString(SETTINGS_FEED_URL, current).apply();
-                    mItemListFragment.refreshFromDb(null);
-                } catch (Exception e) {
-                    // This fails if the app is closed while loading content. Ok, the database already has the data.
-                    e.printStackTrace();
-                }
+                // Show the new content in the item list.
+                // Only called while this activity is alive: the listener is removed when it is destroyed.
+                if (success) activityPrefs.edit().putString(SETTINGS_FEED_URL, rssUrl).apply();
+                mItemListFragment.refreshFromDb(null);
             }
-        });
+        };
+        SyncCoordinator.getInstance(this).requestSync(rssUrl, mSyncListener);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // In debug mode, leave the UI timings and cache stats recorded so far in the log.
+        if (UiTrace.isDebugEnabled()) {
+            UiTrace.dump();
+            CacheRegistry.getInstance(this).dump();
+        }
+        if (HotPathBudget.ENABLED) HotPathBudget.dump();
+        if (QueryProfiler.isEnabled()) QueryProfiler.dump();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // The download continues, but this activity is no longer there to display its result.
+        SyncCoordinator.getInstance(this).removeListener(mSyncListener);
     }
 
     /**
@@ -189,6 +232,9 @@ public class ItemListActivity extends AppCompatActivity implements ItemListFragm
     /** The fragment containing the list of items. */
     private ItemListFragment mItemListFragment;
 
+    /** Waiting for the content download requested by this activity, if any. */
+    private ContentDownload.Listener mSyncListener;
+
     /** Local shared preference that remembers the last used URL. */
     private static final String SETTINGS_FEED_URL = "last_feed_url_loaded";
 }
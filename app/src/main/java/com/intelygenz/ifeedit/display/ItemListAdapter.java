@@ -0,0 +1,501 @@
+package com.intelygenz.ifeedit.display;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.support.v7.widget.RecyclerView;
+import android.text.Html;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.intelygenz.ifeedit.R;
+import com.intelygenz.ifeedit.content.CacheRegistry;
+import com.intelygenz.ifeedit.content.FirstScreenSnapshot;
+import com.intelygenz.ifeedit.content.HotPathBudget;
+import com.intelygenz.ifeedit.content.ImagePlaceholder;
+import com.intelygenz.ifeedit.content.ItemStateStore;
+import com.intelygenz.ifeedit.content.ItemStore;
+import com.intelygenz.ifeedit.content.MemoryCache;
+
+import java.util.List;
+
+/**
+ * Presents the information in each cursor entry on the entry layout (a row in the item list).
+ * Item ids are stable (the "_id" column) so replacing the cursor only notifies the rows that changed.
+ */
+class ItemListAdapter extends RecyclerView.Adapter<ItemListAdapter.ViewHolder> implements ImageLoadScheduler.Rows {
+
+    /**
+     * To be notified when the user selects a row.
+     */
+    interface OnItemClickListener {
+        /**
+         * @param position The row position in the list.
+         * @param id The value of the key column "_id" in the database.
+         */
+        void onItemClick(int position, long id);
+
+        /**
+         * @param position The row position in the list.
+         * @param id The value of the key column "_id" in the database.
+         */
+        void onItemLongClick(int position, long id);
+    }
+
+    ItemListAdapter(Context context, OnItemClickListener listener, ItemStateStore states) {
+        mListener = listener;
+        mStates = states;
+        setHasStableIds(true);
+        mBitmapPool = new BitmapPool();
+        mBitmapDecoder = new BitmapDecoder(mBitmapPool);
+        mImageLoader = new ImageLoadScheduler(this, mBitmapDecoder, mBitmapPool);
+
+        // Prefetched images are the first to go under memory pressure (just loaded again if needed),
+        // parsed texts the last (parsing them again takes time in the main thread).
+        mCaches = CacheRegistry.getInstance(context);
+        mCaches.register("Prefetched images", CacheRegistry.PRIORITY_LOW, PREFETCHED_SHARE, mImageLoader.getPrefetchedCache());
+        mCaches.register("Bitmap pool", CacheRegistry.PRIORITY_NORMAL, BITMAP_POOL_SHARE, mBitmapPool);
+        mCaches.register("Row texts", CacheRegistry.PRIORITY_HIGH, ROW_TEXT_SHARE, mRowTexts);
+    }
+
+    /**
+     * Gives the memory of the caches back, the adapter is not used anymore.
+     */
+    void release() {
+        mCaches.unregister(mImageLoader.getPrefetchedCache());
+        mCaches.unregister(mBitmapPool);
+        mCaches.unregister(mRowTexts);
+        mImageLoader.getPrefetchedCache().trimTo(0);
+        mBitmapPool.trimTo(0);
+        mRowTexts.trimTo(0);
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        mImageLoader.attach(recyclerView);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        mImageLoader.detach();
+    }
+
+    /**
+     * Replaces the displayed rows, notifying only the ones that are different.
+     * @param content The items read from the database.
+     * @param positions The content positions to display (all of them or the result of a search), in order.
+     * @return The previous content, to be closed by the caller if it is not the same.
+     */
+    ItemListContent swapContent(ItemListContent content, int[] positions) {
+        ItemListContent previous = mContent;
+        long[] previousIds = mIds;
+        long[] previousVersions = mVersions;
+        mContent = content;
+        mPositions = positions;
+        mIds = new long[positions.length];
+        mVersions = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            mIds[i] = content.getId(positions[i]);
+            mVersions[i] = content.getVersion(positions[i]);
+        }
+        mSnapshot = null;
+        // The changes of states the new rows have are not needed anymore.
+        mStates.forgetWritten(content.getStateWrites());
+
+        // Column indexes resolved once per cursor instead of once per bind.
+        Cursor cursor = content.getCursor();
+        mCursor = cursor;
+        mTitleColumn = cursor.getColumnIndex(ItemStore.DB_COL_TITLE);
+        mSummaryColumn = cursor.getColumnIndex(ItemStore.DB_COL_SUMMARY);
+        mImageUrlColumn = cursor.getColumnIndex(ItemStore.DB_COL_IMAGE_URL);
+        mReadColumn = cursor.getColumnIndex(ItemStore.DB_COL_READ);
+        mStarredColumn = cursor.getColumnIndex(ItemStore.DB_COL_STARRED);
+        mImageColorColumn = cursor.getColumnIndex(ItemStore.DB_COL_IMAGE_COLOR);
+        mImagePreviewColumn = cursor.getColumnIndex(ItemStore.DB_COL_IMAGE_PREVIEW);
+
+        notifyChanges(previousIds, previousVersions);
+        return previous;
+    }
+
+    /**
+     * Displays the content of the first screen snapshot until the database content is provided.
+     * Rows keep their ids, so the database content replaces them in place (rebinding them fully).
+     */
+    void showSnapshot(List<FirstScreenSnapshot.Entry> entries) {
+        if (mContent != null) return;
+        int previousCount = mIds.length;
+        mSnapshot = entries;
+        mIds = new long[entries.size()];
+        mVersions = new long[mIds.length];
+        for (int i = 0; i < mIds.length; i++) {
+            mIds[i] = entries.get(i).id;
+            // No real version: the rows are always rebound once the database content arrives.
+            mVersions[i] = Long.MIN_VALUE;
+        }
+        if (previousCount > 0) notifyItemRangeRemoved(0, previousCount);
+        notifyItemRangeInserted(0, mIds.length);
+    }
+
+    /**
+     * @return The current content, if any.
+     */
+    ItemListContent getContent() {
+        return mContent;
+    }
+
+    /**
+     * Turns on activate-on-click mode: the selected row gets the 'activated' state.
+     */
+    void setActivateOnItemClick(boolean activateOnItemClick) {
+        mActivateOnItemClick = activateOnItemClick;
+    }
+
+    /**
+     * Gives the 'activated' state to the row at the given position (and removes it from the previous one).
+     */
+    void setActivatedPosition(int position) {
+        int previous = mActivatedPosition;
+        mActivatedPosition = position;
+        if (previous != RecyclerView.NO_POSITION) notifyItemChanged(previous);
+        if (position != RecyclerView.NO_POSITION) notifyItemChanged(position);
+    }
+
+    int getActivatedPosition() {
+        return mActivatedPosition;
+    }
+
+    /**
+     * @param id The value of the key column "_id" in the database.
+     * @return The position of the row displaying the item, NO_POSITION if not displayed.
+     */
+    int getPosition(long id) {
+        for (int i = 0; i < mIds.length; i++) if (mIds[i] == id) return i;
+        return RecyclerView.NO_POSITION;
+    }
+
+    /**
+     * @return Whether the item at the given position has been read, including changes not yet in the database.
+     */
+    boolean isRead(int position) {
+        return mStates.isRead(mIds[position], mCursor != null && mCursor.moveToPosition(mPositions[position]) && mCursor.getInt(mReadColumn) != 0);
+    }
+
+    /**
+     * @return Whether the item at the given position is starred, including changes not yet in the database.
+     */
+    boolean isStarred(int position) {
+        return mStates.isStarred(mIds[position], mCursor != null && mCursor.moveToPosition(mPositions[position]) && mCursor.getInt(mStarredColumn) != 0);
+    }
+
+    @Override
+    public boolean hasImage(int position) {
+        if (mCursor == null) return false;
+        return mCursor.moveToPosition(mPositions[position]) && !mCursor.isNull(mImageUrlColumn);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.activity_item_list_entry, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        UiTrace.begin(UiTrace.LIST_BIND);
+        HotPathBudget.begin(HotPathBudget.LIST_BIND);
+        try {
+            bind(holder, position);
+        } finally {
+            HotPathBudget.end();
+            UiTrace.end();
+        }
+    }
+
+    private void bind(ViewHolder holder, int position) {
+        holder.mBoundId = mIds[position];
+        holder.itemView.setActivated(mActivateOnItemClick && position == mActivatedPosition);
+        // The state overlay holds the changes made by the user not yet in the database.
+        bindState(holder, isRead(position), isStarred(position));
+        if (mCursor == null) {
+            bindSnapshotEntry(holder, mSnapshot.get(position));
+            return;
+        }
+        mCursor.moveToPosition(mPositions[position]);
+
+        // Place title and description summary (plain text computed when the item was stored),
+        // the title parsed once and kept for the next time the row is bound.
+        RowText text = mRowTexts.get(mIds[position]);
+        if (text == null || text.version != mVersions[position]) {
+            String summary = mCursor.getString(mSummaryColumn);
+            text = new RowText(mVersions[position], Html.fromHtml(mCursor.getString(mTitleColumn)),
+                    summary != null ? summary : "");
+            mRowTexts.put(mIds[position], text);
+        }
+        holder.title.setText(text.title);
+        holder.summary.setText(text.summary);
+
+        // Place the image: the list content has no image data, it is loaded in the background
+        // (unless prefetched already) and decoded to the size of the view.
+        if (mCursor.isNull(mImageUrlColumn)) {
+            mImageLoader.cancel(holder);
+            holder.setImage(null);
+            return;
+        }
+        Bitmap prefetched = mImageLoader.takePrefetched(mIds[position]);
+        if (prefetched != null) {
+            mImageLoader.cancel(holder);
+            holder.setImage(prefetched);
+            return;
+        }
+        bindPlaceholder(holder);
+        holder.setBitmap(null);
+        mImageLoader.load(holder, position, mIds[position], holder.getImageWidth(), holder.getImageHeight());
+    }
+
+    /**
+     * Paints the preview of the image stored with the item (or at least its color) until the image is decoded.
+     * The cursor must be at the row of the item.
+     */
+    private void bindPlaceholder(ViewHolder holder) {
+        if (ImagePlaceholder.toPixels(mCursor.getBlob(mImagePreviewColumn), mPreviewPixels)) {
+            holder.mPreview.setPixels(mPreviewPixels, 0, ImagePlaceholder.PREVIEW_SIZE, 0, 0, ImagePlaceholder.PREVIEW_SIZE, ImagePlaceholder.PREVIEW_SIZE);
+            holder.image.setImageDrawable(holder.mPreviewDrawable);
+            // The drawable may be the same, only its pixels changed.
+            holder.image.invalidate();
+        } else if (!mCursor.isNull(mImageColorColumn)) {
+            holder.mColorDrawable.setColor(mCursor.getInt(mImageColorColumn));
+            holder.image.setImageDrawable(holder.mColorDrawable);
+            holder.image.invalidate();
+        } else {
+            holder.image.setImageDrawable(null);
+        }
+    }
+
+    private void bindState(ViewHolder holder, boolean read, boolean starred) {
+        holder.title.setAlpha(read ? READ_ALPHA : 1f);
+        holder.summary.setAlpha(read ? READ_ALPHA : 1f);
+        holder.star.setVisibility(starred ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Binds a row from the snapshot: text is already plain and the thumbnail tiny.
+     */
+    private void bindSnapshotEntry(ViewHolder holder, FirstScreenSnapshot.Entry entry) {
+        mImageLoader.cancel(holder);
+        holder.title.setText(entry.title);
+        holder.summary.setText(entry.summary);
+        Bitmap bitmap = null;
+        if (entry.thumbnail != null) bitmap = mBitmapDecoder.decode(entry.thumbnail, 0, 0);
+        holder.setImage(bitmap);
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        // The row is off screen: its image is not needed anymore and its memory can go to the next decode.
+        mImageLoader.cancel(holder);
+        holder.image.setImageDrawable(null);
+        holder.setBitmap(null);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mIds.length;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mIds[position];
+    }
+
+    /**
+     * Compares the previous rows with the current ones: rows kept at the beginning and at the end
+     * are only rebound if their content changed, the rows in between are notified as a range of
+     * changes plus the inserted or removed rows.
+     */
+    private void notifyChanges(long[] previousIds, long[] previousVersions) {
+        int oldCount = previousIds.length;
+        int newCount = mIds.length;
+        int common = Math.min(oldCount, newCount);
+
+        int prefix = 0;
+        while (prefix < common && previousIds[prefix] == mIds[prefix]) prefix++;
+        int suffix = 0;
+        while (suffix < common - prefix && previousIds[oldCount - 1 - suffix] == mIds[newCount - 1 - suffix]) suffix++;
+
+        int oldMiddle = oldCount - prefix - suffix;
+        int newMiddle = newCount - prefix - suffix;
+        int changed = Math.min(oldMiddle, newMiddle);
+        if (changed > 0) notifyItemRangeChanged(prefix, changed);
+        if (oldMiddle > changed) notifyItemRangeRemoved(prefix + changed, oldMiddle - changed);
+        else if (newMiddle > changed) notifyItemRangeInserted(prefix + changed, newMiddle - changed);
+
+        // Positions from here on are the new ones, after the insertion or removal.
+        for (int i = 0; i < prefix; i++) {
+            if (previousVersions[i] != mVersions[i]) notifyItemChanged(i);
+        }
+        for (int i = 1; i <= suffix; i++) {
+            if (previousVersions[oldCount - i] != mVersions[newCount - i]) notifyItemChanged(newCount - i);
+        }
+    }
+
+    /**
+     * The parsed title and summary of an item.
+     */
+    private static class RowText {
+        RowText(long version, CharSequence title, CharSequence summary) {
+            this.version = version;
+            this.title = title;
+            this.summary = summary;
+        }
+
+        final long version;
+        final CharSequence title;
+        final CharSequence summary;
+    }
+
+    /**
+     * Keeps the views of a row so they are looked up only once.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener, View.OnLongClickListener, ImageLoadScheduler.Target {
+        final TextView title;
+        final TextView summary;
+        final ImageView image;
+        final ImageView star;
+
+        ViewHolder(View view) {
+            super(view);
+            title = (TextView) view.findViewById(R.id.entry_title);
+            summary = (TextView) view.findViewById(R.id.entry_summary);
+            image = (ImageView) view.findViewById(R.id.entry_image);
+            star = (ImageView) view.findViewById(R.id.entry_star);
+            mPreview = Bitmap.createBitmap(ImagePlaceholder.PREVIEW_SIZE, ImagePlaceholder.PREVIEW_SIZE, Bitmap.Config.ARGB_8888);
+            mPreviewDrawable = new BitmapDrawable(view.getResources(), mPreview);
+            // Scaled up smoothly, a blur of the image.
+            mPreviewDrawable.setFilterBitmap(true);
+            view.setOnClickListener(this);
+            view.setOnLongClickListener(this);
+        }
+
+        @Override
+        public long getBoundId() {
+            return mBoundId;
+        }
+
+        @Override
+        public void setImage(Bitmap bitmap) {
+            if (bitmap != null) image.setImageBitmap(bitmap);
+            else image.setImageResource(R.mipmap.ic_launcher);
+            setBitmap(bitmap);
+        }
+
+        /**
+         * Remembers the bitmap now displayed, giving the previous one back to the pool.
+         */
+        void setBitmap(Bitmap bitmap) {
+            if (mBitmap != null && mBitmap != bitmap) mBitmapPool.put(mBitmap);
+            mBitmap = bitmap;
+        }
+
+        /**
+         * Measured width of the image view or, before the first layout, the width of the list.
+         */
+        int getImageWidth() {
+            if (image.getWidth() > 0) return image.getWidth();
+            View parent = (View) itemView.getParent();
+            return parent != null ? parent.getWidth() : 0;
+        }
+
+        /**
+         * Measured height of the image view or, before the first layout, its fixed layout height.
+         */
+        int getImageHeight() {
+            if (image.getHeight() > 0) return image.getHeight();
+            return Math.max(image.getLayoutParams().height, 0);
+        }
+
+        /** Image placeholders, reused by every item the row displays. */
+        private final Bitmap mPreview;
+        private final BitmapDrawable mPreviewDrawable;
+        private final ColorDrawable mColorDrawable = new ColorDrawable();
+
+        /** The decoded image currently displayed, if any. */
+        private Bitmap mBitmap;
+
+        /** The item the row is bound to. */
+        private long mBoundId = RecyclerView.NO_ID;
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) return;
+            if (mActivateOnItemClick) setActivatedPosition(position);
+            mListener.onItemClick(position, getItemId());
+        }
+
+        @Override
+        public boolean onLongClick(View view) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) return false;
+            mListener.onItemLongClick(position, getItemId());
+            return true;
+        }
+    }
+
+    /** The content being displayed: the database content or, until there is one, the snapshot. */
+    private ItemListContent mContent;
+    private Cursor mCursor;
+    private int[] mPositions;
+    private List<FirstScreenSnapshot.Entry> mSnapshot;
+    private long[] mIds = new long[0];
+    private long[] mVersions = new long[0];
+
+    /** Cursor column indexes. */
+    private int mTitleColumn;
+    private int mSummaryColumn;
+    private int mImageUrlColumn;
+    private int mReadColumn;
+    private int mStarredColumn;
+    private int mImageColorColumn;
+    private int mImagePreviewColumn;
+
+    /** Colors of an image preview, reused by every bind. */
+    private final int[] mPreviewPixels = new int[ImagePlaceholder.PREVIEW_SIZE * ImagePlaceholder.PREVIEW_SIZE];
+
+    /** Read and starred changes made by the user, displayed before they reach the database. */
+    private final ItemStateStore mStates;
+
+    /** Text opacity of the items already read. */
+    private static final float READ_ALPHA = 0.6f;
+
+    /** Image decoding to the displayed size, reusing the memory of images no longer displayed. */
+    private final BitmapPool mBitmapPool;
+    private final BitmapDecoder mBitmapDecoder;
+
+    /** Loads the images of the rows in the background, the visible ones first. */
+    private final ImageLoadScheduler mImageLoader;
+
+    /** Parsed texts of the rows by item id, valid for the version they were parsed from. */
+    private final MemoryCache<Long, RowText> mRowTexts = new MemoryCache<Long, RowText>() {
+        @Override
+        protected int sizeOf(RowText text) {
+            // Characters plus, roughly, their spans.
+            return (text.title.length() + text.summary.length()) * 4 + ROW_TEXT_OVERHEAD;
+        }
+    };
+    private static final int ROW_TEXT_OVERHEAD = 256;
+
+    /** Where the caches get their memory from, and their shares of it (percent). */
+    private final CacheRegistry mCaches;
+    private static final int PREFETCHED_SHARE = 15;
+    private static final int BITMAP_POOL_SHARE = 40;
+    private static final int ROW_TEXT_SHARE = 10;
+
+    private final OnItemClickListener mListener;
+    private boolean mActivateOnItemClick;
+    private int mActivatedPosition = RecyclerView.NO_POSITION;
+}
@@ -0,0 +1,264 @@
+package com.intelygenz.ifeedit.display;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MergeCursor;
+
+import com.intelygenz.ifeedit.content.ItemProvider;
+import com.intelygenz.ifeedit.content.ItemStateStore;
+import com.intelygenz.ifeedit.content.ItemStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All the items in the database, most recent first, as read for one database generation.
+ * Searches are displayed as subsets of it, so the rows themselves are read only once.
+ * Items inserted later (e.g. by a sync in progress) are read on their own and added to the
+ * rows already read, see {@link #withInserted}.
+ * Read through the {@link ItemProvider}.
+ */
+class ItemListContent {
+
+    /**
+     * Reads the whole content. Must run in a background thread.
+     */
+    static ItemListContent load(ContentResolver resolver) {
+        // The generation is taken before reading: if the content changes meanwhile it will be read again.
+        long generation = ItemStore.getGeneration();
+        long stateWrites = ItemStateStore.getWrites();
+
+        Cursor cursor = resolver.query(ItemProvider.CONTENT_URI, LIST_COLS, ItemStore.ORIGINALS_ONLY, null, ORDER_BY);
+        // The row keys are kept apart so the adapter can compare them without going through the whole content.
+        // They are read from the same cursor as the rows, so they match them even if the database changes meanwhile.
+        long[] ids = new long[cursor.getCount()];
+        long[] versions = new long[ids.length];
+        readKeys(cursor, ids, versions, 0);
+        List<Segment> segments = new ArrayList<>();
+        segments.add(new Segment(cursor));
+        int[] order = new int[ids.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        return new ItemListContent(generation, stateWrites, segments, ids, versions, order);
+    }
+
+    /**
+     * Reads the items inserted with ids in the given range (ids only grow) and adds them to the ones
+     * of this content, which are not read again. Must run in a background thread.
+     * The changes other than those insertions are not read: the caller must know there are none.
+     * @return The content with the new items, null if it should be loaded again instead (it has been
+     *         extended too many times already, or closed).
+     */
+    ItemListContent withInserted(ContentResolver resolver, long fromId, long toId) {
+        if (mSegments.size() >= MAX_SEGMENTS) return null;
+        long generation = ItemStore.getGeneration();
+        String selection = ItemStore.DB_COL_ID + " BETWEEN ? AND ? AND " + ItemStore.ORIGINALS_ONLY;
+        String[] args = new String[] { String.valueOf(fromId), String.valueOf(toId) };
+
+        Cursor cursor = resolver.query(ItemProvider.CONTENT_URI, LIST_COLS, selection, args, ORDER_BY);
+        int count = mIds.length;
+        long[] ids = new long[count + cursor.getCount()];
+        long[] versions = new long[ids.length];
+        System.arraycopy(mIds, 0, ids, 0, count);
+        System.arraycopy(mVersions, 0, versions, 0, count);
+        readKeys(cursor, ids, versions, count);
+        List<Segment> segments = new ArrayList<>(mSegments);
+        synchronized (Segment.class) {
+            // Closed meanwhile (replaced in the list): its cursors may be gone.
+            if (mClosed) {
+                cursor.close();
+                return null;
+            }
+            for (Segment segment : mSegments) segment.retain();
+        }
+        segments.add(new Segment(cursor));
+
+        // Both are most recent first: merged keeping that order. Rows already in the content are not listed twice.
+        int[] order = new int[ids.length];
+        int merged = 0;
+        int previous = 0;
+        int added = count;
+        while (previous < mOrder.length || added < ids.length) {
+            if (added < ids.length && mPositions.containsKey(ids[added])) {
+                added++;
+            } else if (added == ids.length || (previous < mOrder.length && versions[mOrder[previous]] >= versions[added])) {
+                order[merged++] = mOrder[previous++];
+            } else {
+                order[merged++] = added++;
+            }
+        }
+        if (merged < order.length) {
+            int[] shorter = new int[merged];
+            System.arraycopy(order, 0, shorter, 0, merged);
+            order = shorter;
+        }
+        // The rows read before keep their states: they have the changes written before they were read only.
+        return new ItemListContent(generation, mStateWrites, segments, ids, versions, order);
+    }
+
+    /**
+     * Reads the ids of the items whose title contains the given text. Must run in a background thread.
+     * @return The ids, most recent first.
+     */
+    static long[] search(ContentResolver resolver, String searchCondition) {
+        Cursor cursor = resolver.query(ItemProvider.CONTENT_URI, new String[] { ItemStore.DB_COL_ID },
+                ItemStore.DB_COL_TITLE + " LIKE ? AND " + ItemStore.ORIGINALS_ONLY, new String[] { "%" + searchCondition + "%" },
+                ItemStore.DB_COL_PUB_DATE + " DESC");
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) ids[i] = cursor.getLong(0);
+        cursor.close();
+        return ids;
+    }
+
+    /**
+     * Reads the ids and versions of a cursor of {@link #LIST_COLS}, in a background thread rather than
+     * in the main one, and leaves it back before its first row.
+     */
+    private static void readKeys(Cursor cursor, long[] ids, long[] versions, int offset) {
+        for (int i = offset; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+            versions[i] = cursor.getLong(1);
+        }
+        // Fills the first window again, for the first rows displayed.
+        if (cursor.moveToFirst()) cursor.moveToPrevious();
+    }
+
+    private static final String ORDER_BY = ItemStore.DB_COL_PUB_DATE + " DESC";
+
+    /** Times a content is extended with new items before being read again whole, see {@link #withInserted}. */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * The columns displayed in the list, the id and the version (the publication date) first. The image data and the description are left out, so the
+     * cursor windows stay small: images are read by id when their rows are displayed and the
+     * summary is computed when the items are stored. The image placeholders take a few dozen bytes.
+     */
+    private static final String[] LIST_COLS = new String[] { ItemStore.DB_COL_ID, ItemStore.DB_COL_PUB_DATE,
+            ItemStore.DB_COL_TITLE, ItemStore.DB_COL_SUMMARY, ItemStore.DB_COL_IMAGE_URL,
+            ItemStore.DB_COL_READ, ItemStore.DB_COL_STARRED, ItemStore.DB_COL_IMAGE_COLOR, ItemStore.DB_COL_IMAGE_PREVIEW };
+
+    /**
+     * @param stateWrites The writes of item states the rows have, see {@link ItemStateStore#getWrites()}.
+     * @param segments The cursors of the rows, one after the other.
+     * @param ids The id of each row, by cursor position.
+     * @param versions The version of each row, by cursor position.
+     * @param order The cursor positions of the items, most recent first.
+     */
+    private ItemListContent(long generation, long stateWrites, List<Segment> segments, long[] ids, long[] versions, int[] order) {
+        mGeneration = generation;
+        mStateWrites = stateWrites;
+        mSegments = segments;
+        if (segments.size() == 1) {
+            mCursor = segments.get(0).cursor;
+        } else {
+            Cursor[] cursors = new Cursor[segments.size()];
+            for (int i = 0; i < cursors.length; i++) cursors[i] = segments.get(i).cursor;
+            mCursor = new MergeCursor(cursors);
+        }
+        mIds = ids;
+        mVersions = versions;
+        mOrder = order;
+        for (int position : order) mPositions.put(ids[position], position);
+    }
+
+    /**
+     * @return Whether the database has changed since this content was read.
+     */
+    boolean isStale() {
+        return mGeneration != ItemStore.getGeneration();
+    }
+
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return The writes of item states the rows have, see {@link ItemStateStore#getWrites()}.
+     */
+    long getStateWrites() {
+        return mStateWrites;
+    }
+
+    Cursor getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * @return The cursor position of each given id (ids not in the content are left out).
+     */
+    int[] positionsOf(long[] ids) {
+        int[] positions = new int[ids.length];
+        int count = 0;
+        for (long id : ids) {
+            Integer position = mPositions.get(id);
+            if (position != null) positions[count++] = position;
+        }
+        if (count == positions.length) return positions;
+        int[] found = new int[count];
+        System.arraycopy(positions, 0, found, 0, count);
+        return found;
+    }
+
+    /**
+     * @return The cursor position of every item, in order.
+     */
+    int[] allPositions() {
+        return mOrder.clone();
+    }
+
+    long getId(int position) {
+        return mIds[position];
+    }
+
+    long getVersion(int position) {
+        return mVersions[position];
+    }
+
+    /**
+     * Closes the cursors not shared with another content. Can be called more than once.
+     */
+    void close() {
+        synchronized (Segment.class) {
+            if (mClosed) return;
+            mClosed = true;
+            for (Segment segment : mSegments) segment.release();
+        }
+    }
+
+    /**
+     * A cursor shared by the contents extended from the one that read it, closed with the last of them.
+     */
+    private static class Segment {
+        Segment(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        void retain() {
+            synchronized (Segment.class) {
+                mReferences++;
+            }
+        }
+
+        void release() {
+            synchronized (Segment.class) {
+                if (--mReferences == 0) cursor.close();
+            }
+        }
+
+        final Cursor cursor;
+        private int mReferences = 1;
+    }
+
+    private final long mGeneration;
+    private final long mStateWrites;
+    private final List<Segment> mSegments;
+    private final Cursor mCursor;
+    private final long[] mIds;
+    private final long[] mVersions;
+    private final int[] mOrder;
+    private boolean mClosed;
+
+    /** Cursor position of each id. */
+    private final Map<Long, Integer> mPositions = new HashMap<>();
+}
@@ -1,31 +1,42 @@
 package com.intelygenz.ifeedit.display;
 
 import android.app.Activity;
+import android.content.ContentUris;
 import android.content.Context;
-import android.database.Cursor;
-import android.graphics.BitmapFactory;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.support.v4.app.ListFragment;
-import android.text.Html;
+import android.os.Handler;
+import android.support.v4.app.Fragment;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
 import android.view.View;
-import android.widget.ImageView;
-import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
-import android.widget.TextView;
+import android.view.ViewGroup;
 
 import com.intelygenz.ifeedit.R;
-import com.intelygenz.ifeedit.content.ItemStore;
+import com.intelygenz.ifeedit.content.FirstScreenSnapshot;
+import com.intelygenz.ifeedit.content.ItemProvider;
+import com.intelygenz.ifeedit.content.ItemStateStore;
+import com.intelygenz.ifeedit.content.QueryResultCache;
+
+import java.util.List;
 
 /**
- * A list fragment representing a list of Items. This fragment
+ * A fragment representing a list of Items in a {@link RecyclerView}. This fragment
  * also supports tablet devices by allowing list items to be given an
  * 'activated' state upon selection. This helps indicate which item is
  * currently being viewed in a {@link ItemDetailFragment}.
  * <p/>
+ * The fragment instance is retained across configuration changes (e.g. a rotation), so the new
+ * activity finds the loaded content, the search results and any query in progress as they were,
+ * and only the views are created again.
+ * <p/>
  * Activities containing this fragment MUST implement the {@link Callbacks}
  * interface.
  */
-public class ItemListFragment extends ListFragment {
+public class ItemListFragment extends Fragment implements ItemListAdapter.OnItemClickListener {
 
     /**
      * A callback interface that all activities containing this fragment must
@@ -60,41 +71,227 @@ public class ItemListFragment extends ListFragment {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+        mAdapter = new ItemListAdapter(getActivity(), this, ItemStateStore.getInstance(getActivity()));
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        View rootView = inflater.inflate(R.layout.fragment_item_list, container, false);
+        mProgress = rootView.findViewById(R.id.item_list_progress);
+        mRecyclerView = (RecyclerView) rootView.findViewById(R.id.item_recycler);
+        mRecyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+        mRecyclerView.setAdapter(mAdapter);
+        // Retained content is displayed as soon as there is a list again.
+        if (mAdapter.getContent() != null) setListShown(true);
+        return rootView;
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // The adapter outlives the views: the old list must not stay registered with it.
+        mRecyclerView.setAdapter(null);
+        mRecyclerView = null;
+        mProgress = null;
+    }
+
+    /**
+     * @return Whether the list already has content, or is loading it: true for the retained fragment after a configuration change.
+     */
+    public boolean hasContent() {
+        return mAdapter.getContent() != null || mRefreshTask != null;
     }
 
     /**
      * Make the list of be cleared and a spinner appears until a refreshFromDb is called.
      */
     public void showLoadingIndicator() {
+        if (mRecyclerView == null) return;
         setListShown(false);
     }
 
+    /**
+     * Displays the snapshot of the first screen, until the database content is loaded.
+     * @param entries The snapshot entries, nothing is done if null.
+     */
+    public void showSnapshot(List<FirstScreenSnapshot.Entry> entries) {
+        if (entries == null || entries.isEmpty()) return;
+        setListShown(true);
+        mAdapter.showSnapshot(entries);
+    }
+
     /**
      * Updates the listed items by reading the current content in the database.
+     * The database is queried in the background and only the rows that are different from the
+     * ones already displayed are rebound. If the database has not changed since the last time,
+     * showing all the items or repeating a recent search is done with no query at all; if it has
+     * only got new items, only those are read.
      * @param searchCondition Filters the content to be displayed in the list. A string to exist in the title.
      */
     public void refreshFromDb(String searchCondition) {
-        // Close previous load.
-        if (mCursor != null && !mCursor.isClosed()) mCursor.close();
+        UiTrace.begin(UiTrace.LIST_REFRESH);
+        mSearchCondition = searchCondition;
+        // The last requested content is the only one of interest.
+        if (mRefreshTask != null) mRefreshTask.cancel(false);
+        mRefreshTask = null;
+        String query = QueryResultCache.normalize(searchCondition);
+
+        ItemListContent content = mAdapter.getContent();
+        if (content != null && !content.isStale()) {
+            long[] ids = query.isEmpty() ? null : mQueryCache.get(query, content.getGeneration());
+            if (query.isEmpty() || ids != null) {
+                show(content, ids);
+                UiTrace.end();
+                return;
+            }
+        }
 
-        // Query content from database and place in the list view using a cursor adapter.
-        // Getting all (some, if search condition provided) entries stored in database from the most recent (publication date).
+        // Only the new items are read if they are the only change notified.
+        boolean insertedOnly = content != null && !mFullReload && mInsertedFrom >= 0;
+        mRefreshTask = new RefreshTask(query, content, insertedOnly ? mInsertedFrom : -1, mInsertedTo);
+        // Not in the serial executor: a content download running there would delay the list.
+        mRefreshTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        UiTrace.end();
+    }
+
+    /**
+     * Displays the given items.
+     * @param ids The items to display, all the content if null.
+     */
+    private void show(ItemListContent content, long[] ids) {
         setListShown(true);
-        String whereFilter = searchCondition == null || searchCondition.isEmpty() ? null : ItemStore.DB_COL_TITLE + " like '%" + searchCondition + "%'";
-        ItemStore database = new ItemStore(this.getContext());
-        mCursor = database.get().query(ItemStore.DB_TABLE_NAME, ItemStore.DB_COLS, whereFilter, null, null, null, ItemStore.DB_COL_PUB_DATE + " DESC");
-        int[] to = new int[] { R.id.entry_title, R.id.entry_summary, R.id.entry_image};
-        CustomCursorAdapter cca = new CustomCursorAdapter(this.getContext(), R.layout.activity_item_list_entry, mCursor, ItemStore.DB_COLS, to, 0);
-        setListAdapter(cca);
+        ItemListContent previous = mAdapter.swapContent(content, ids == null ? content.allPositions() : content.positionsOf(ids));
+        if (previous != null && previous != content) previous.close();
+    }
+
+    /**
+     * Queries the database content in the background: the whole content if the one displayed is
+     * outdated (just the new items if those are the only change) and then the ids matching the
+     * search, if any.
+     */
+    private class RefreshTask extends AsyncTask<Void, Void, ItemListContent> {
+
+        /**
+         * @param query The normalized search, empty for all the items.
+         * @param content The content currently displayed, reused if still up to date.
+         * @param insertedFrom The lowest id inserted since the content was read, if the insertions are
+         *                     the only change; -1 otherwise.
+         * @param insertedTo The highest id inserted.
+         */
+        RefreshTask(String query, ItemListContent content, long insertedFrom, long insertedTo) {
+            mQuery = query;
+            mContent = content;
+            mInsertedFrom = insertedFrom;
+            mInsertedTo = insertedTo;
+        }
+
+        @Override
+        protected ItemListContent doInBackground(Void... nothing) {
+            UiTrace.begin(UiTrace.LIST_QUERY);
+            try {
+                ItemListContent content = mContent;
+                if (content != null && content.isStale() && mInsertedFrom >= 0) {
+                    content = content.withInserted(mContext.getContentResolver(), mInsertedFrom, mInsertedTo);
+                }
+                if (content == null || content.isStale()) content = ItemListContent.load(mContext.getContentResolver());
+                if (!mQuery.isEmpty()) mIds = ItemListContent.search(mContext.getContentResolver(), mQuery);
+                return content;
+            } finally {
+                UiTrace.end();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(ItemListContent content) {
+            if (mRefreshTask == this) {
+                mRefreshTask = null;
+                // Any change notified after this task started would have cancelled it: all are read.
+                mFullReload = false;
+                ItemListFragment.this.mInsertedFrom = -1;
+                ItemListFragment.this.mInsertedTo = -1;
+            }
+            if (!isAdded()) {
+                if (content != mContent) content.close();
+                return;
+            }
+            UiTrace.begin(UiTrace.LIST_REFRESH);
+            if (mIds != null) mQueryCache.put(mQuery, content.getGeneration(), mIds);
+            show(content, mIds);
+            UiTrace.end();
+        }
+
+        @Override
+        protected void onCancelled(ItemListContent content) {
+            if (content != null && content != mAdapter.getContent()) content.close();
+        }
+
+        private final String mQuery;
+        private final ItemListContent mContent;
+        private final long mInsertedFrom;
+        private final long mInsertedTo;
+        private long[] mIds;
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+
+        // Any writer (e.g. a download in the background) notifies its changes through the provider.
+        mContext.getContentResolver().registerContentObserver(ItemProvider.CONTENT_URI, true, mObserver);
+
+        // Catch up with the changes made while not observing, if any: which ones is not known.
+        ItemListContent content = mAdapter.getContent();
+        if (content != null && content.isStale()) {
+            mFullReload = true;
+            refreshFromDb(mSearchCondition);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+    }
+
+    /**
+     * Updates the list when the items change: a change of the state of a single item just rebinds
+     * its row (the state is already displayed from memory), new items are read and added to the
+     * content, other changes read the content again.
+     */
+    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            long[] inserted = ItemProvider.insertedRange(uri);
+            if (inserted != null) {
+                if (mInsertedFrom < 0 || inserted[0] < mInsertedFrom) mInsertedFrom = inserted[0];
+                mInsertedTo = Math.max(mInsertedTo, inserted[1]);
+                refreshFromDb(mSearchCondition);
+                return;
+            }
+            if (uri != null && !uri.equals(ItemProvider.CONTENT_URI)) {
+                long id = ContentUris.parseId(uri);
+                int position = mAdapter.getPosition(id);
+                if (position != RecyclerView.NO_POSITION) mAdapter.notifyItemChanged(position);
+                return;
+            }
+            mFullReload = true;
+            refreshFromDb(mSearchCondition);
+        }
+    };
+
     @Override
     public void onViewCreated(View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
         // Restore the previously serialized activated item position.
         if (savedInstanceState != null && savedInstanceState.containsKey(STATE_ACTIVATED_POSITION)) {
-            setActivatedPosition(savedInstanceState.getInt(STATE_ACTIVATED_POSITION));
+            mAdapter.setActivatedPosition(savedInstanceState.getInt(STATE_ACTIVATED_POSITION));
         }
     }
 
@@ -108,35 +305,54 @@ public class ItemListFragment extends ListFragment {
         }
 
         mCallbacks = (Callbacks) activity;
+        mContext = activity.getApplicationContext();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        // Not called for a configuration change: the content is kept for the next activity.
+        ItemListContent content = mAdapter.getContent();
+        if (content != null) content.close();
+        if (mRefreshTask != null) mRefreshTask.cancel(false);
+        mAdapter.release();
     }
 
     @Override
     public void onDetach() {
         super.onDetach();
 
-        if (mCursor != null && !mCursor.isClosed()) mCursor.close();
-
         // Reset the active callbacks interface to the dummy implementation.
         mCallbacks = sDummyCallbacks;
     }
 
     @Override
-    public void onListItemClick(ListView listView, View view, int position, long id) {
-        super.onListItemClick(listView, view, position, id);
+    public void onItemClick(int position, long id) {
+        // Opening an item marks it as read. Displayed right away, written to the database later.
+        if (!mAdapter.isRead(position)) {
+            ItemStateStore.getInstance(mContext).setRead(id, true, mAdapter.isStarred(position));
+            mAdapter.notifyItemChanged(position);
+        }
 
         // Notify the active callbacks interface (the activity, if the
         // fragment is attached to one) that an item has been selected.
-        mCursor.moveToPosition(position);
-        int dbId = mCursor.getInt(mCursor.getColumnIndex(ItemStore.DB_COL_ID));
-        mCallbacks.onItemSelected(dbId);
+        mCallbacks.onItemSelected((int) id);
+    }
+
+    @Override
+    public void onItemLongClick(int position, long id) {
+        // Long press toggles the star. Displayed right away, written to the database later.
+        ItemStateStore.getInstance(mContext).setStarred(id, mAdapter.isRead(position), !mAdapter.isStarred(position));
+        mAdapter.notifyItemChanged(position);
     }
 
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        if (mActivatedPosition != ListView.INVALID_POSITION) {
+        if (mAdapter.getActivatedPosition() != RecyclerView.NO_POSITION) {
             // Serialize and persist the activated item position.
-            outState.putInt(STATE_ACTIVATED_POSITION, mActivatedPosition);
+            outState.putInt(STATE_ACTIVATED_POSITION, mAdapter.getActivatedPosition());
         }
     }
 
@@ -145,25 +361,44 @@ public class ItemListFragment extends ListFragment {
      * given the 'activated' state when touched.
      */
     public void setActivateOnItemClick(boolean activateOnItemClick) {
-        // When setting CHOICE_MODE_SINGLE, ListView will automatically
-        // give items the 'activated' state when touched.
-        getListView().setChoiceMode(activateOnItemClick
-                ? ListView.CHOICE_MODE_SINGLE
-                : ListView.CHOICE_MODE_NONE);
-    }
-
-    private void setActivatedPosition(int position) {
-        if (position == ListView.INVALID_POSITION) {
-            getListView().setItemChecked(mActivatedPosition, false);
-        } else {
-            getListView().setItemChecked(position, true);
-        }
+        mAdapter.setActivateOnItemClick(activateOnItemClick);
+    }
 
-        mActivatedPosition = position;
+    /**
+     * Shows either the list or the loading spinner.
+     */
+    private void setListShown(boolean shown) {
+        if (mRecyclerView == null) return;
+        mProgress.setVisibility(shown ? View.GONE : View.VISIBLE);
+        mRecyclerView.setVisibility(shown ? View.VISIBLE : View.INVISIBLE);
     }
 
-    /** The cursor to retrieve content from database. */
-    private Cursor mCursor;
+    /** Context to query the items from a background thread. */
+    private Context mContext;
+
+    /** The search the list is currently filtered by, if any. */
+    private String mSearchCondition;
+
+    /** The database query in progress, if any. */
+    private RefreshTask mRefreshTask;
+
+    /**
+     * The changes notified since the displayed content was read: whether any other than insertions,
+     * and the range of ids inserted (-1 if none).
+     */
+    private boolean mFullReload;
+    private long mInsertedFrom = -1;
+    private long mInsertedTo = -1;
+
+    /** Binds the database content to the list rows. */
+    private ItemListAdapter mAdapter;
+
+    /** The ids found by the most recent searches. */
+    private final QueryResultCache mQueryCache = new QueryResultCache(QUERY_CACHE_SIZE);
+    private static final int QUERY_CACHE_SIZE = 16;
+
+    private RecyclerView mRecyclerView;
+    private View mProgress;
 
     /**
      * The serialization (saved instance state) Bundle key representing the
@@ -176,42 +411,4 @@ public class ItemListFragment extends ListFragment {
      * clicks.
      */
     private Callbacks mCallbacks = sDummyCallbacks;
-
-    /**
-     * The current activated item position. Only used on tablets.
-     */
-    private int mActivatedPosition = ListView.INVALID_POSITION;
-
-    /**
-     * Presents the information in each cursor entry on the entry layout (a row in the item list).
-     */
-    private class CustomCursorAdapter extends SimpleCursorAdapter {
-        public CustomCursorAdapter(Context context, int layout, Cursor c, String[] from, int[] to, int flags) {
-            super(context, layout, c, from, to, flags);
-        }
-
-        @Override
-        public void bindView(View view, Context context, Cursor cursor) {
-            TextView title = (TextView) view.findViewById(R.id.entry_title);
-            TextView summary = (TextView) view.findViewById(R.id.entry_summary);
-            ImageView image = (ImageView) view.findViewById(R.id.entry_image);
-
-            // Place title.
-            title.setText(Html.fromHtml(cursor.getString(cursor.getColumnIndex(ItemStore.DB_COL_TITLE))));
-
-            // Build and place description summary.
-            // The description content sometimes comes as plain text but also as HTML. Not easy to get a proper summary.
-            String description = cursor.getString(cursor.getColumnIndex(ItemStore.DB_COL_DESCRIPTION));
-            String summaryAttempt;
-            int paragraph = description.indexOf("<p>", description.indexOf("<p>") + 3);
-            if (paragraph != -1) summaryAttempt = description.substring(paragraph + 3);
-            else summaryAttempt = description;
-            summary.setText(Html.fromHtml(summaryAttempt));
-
-            // Place the image.
-            byte[] imageContent = cursor.getBlob(cursor.getColumnIndex(ItemStore.DB_COL_IMAGE_CONTENT));
-            if (imageContent != null) image.setImageBitmap(BitmapFactory.decodeByteArray(imageContent, 0, imageContent.length));
-            else image.setImageResource(R.mipmap.ic_launcher);
-        }
-    }
 }
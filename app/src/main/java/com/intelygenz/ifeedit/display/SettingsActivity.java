@@ -16,6 +16,8 @@ import android.support.v7.app.ActionBar;
 import android.view.MenuItem;
 
 import com.intelygenz.ifeedit.R;
+import com.intelygenz.ifeedit.content.RetentionPolicy;
+import com.intelygenz.ifeedit.content.SyncProfile;
 
 import java.util.List;
 
@@ -132,6 +134,12 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             // When their values change, their summaries are updated to reflect the new value,
             // per the Android Design guidelines.
             bindPreferenceSummaryToValue(findPreference("settings_feed_url"));
+            bindPreferenceSummaryToValue(findPreference(RetentionPolicy.PREF_MAX_AGE_DAYS));
+            bindPreferenceSummaryToValue(findPreference(RetentionPolicy.PREF_MAX_ITEMS_PER_FEED));
+            bindPreferenceSummaryToValue(findPreference(RetentionPolicy.PREF_MAX_TOTAL_MB));
+            bindPreferenceSummaryToValue(findPreference(SyncProfile.PREF_UNMETERED_IMAGE_KB));
+            bindPreferenceSummaryToValue(findPreference(SyncProfile.PREF_METERED_IMAGE_KB));
+            bindPreferenceSummaryToValue(findPreference(SyncProfile.PREF_SLOW_IMAGE_KB));
         }
 
         @Override
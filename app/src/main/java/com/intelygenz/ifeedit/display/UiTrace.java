@@ -0,0 +1,197 @@
+package com.intelygenz.ifeedit.display;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named trace sections around the UI hot paths.
+ * Sections always show up in systrace (from Jelly Bean MR2) and count their calls and total time.
+ * In debug mode the duration of each call and the dropped frames are also recorded in histograms
+ * that can be dumped to the log.
+ * Sections must be ended in the same thread they were begun.
+ */
+public class UiTrace {
+
+    /** Preference key of the debug mode, see res/xml/pref_general.xml. */
+    public static final String PREF_DEBUG = "settings_debug_trace";
+
+    /** Section names. */
+    public static final String LIST_ACTIVITY_CREATE = "ItemListActivity.onCreate";
+    public static final String LIST_REFRESH = "ItemListFragment.refreshFromDb";
+    public static final String LIST_QUERY = "ItemListFragment.query";
+    public static final String LIST_BIND = "ItemListAdapter.bind";
+    public static final String IMAGE_DECODE = "BitmapDecoder.decode";
+    public static final String DETAIL_CREATE_VIEW = "ItemDetailFragment.onCreateView";
+    private static final String FRAME = "Frame";
+
+    /**
+     * Starts a section.
+     */
+    public static void begin(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) Trace.beginSection(name);
+        Deque<Long> starts = sStarts.get();
+        starts.push(System.nanoTime());
+        sNames.get().push(name);
+    }
+
+    /**
+     * Ends the last section begun in this thread.
+     */
+    public static void end() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) Trace.endSection();
+        Deque<Long> starts = sStarts.get();
+        if (starts.isEmpty()) return;
+        record(sNames.get().pop(), System.nanoTime() - starts.pop());
+    }
+
+    /**
+     * Turns the debug mode on or off. Turning it on also starts counting dropped frames.
+     */
+    public static synchronized void setDebugEnabled(boolean enabled) {
+        if (sDebug == enabled) return;
+        sDebug = enabled;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (enabled) FrameMonitor.start();
+            else FrameMonitor.stop();
+        }
+    }
+
+    public static boolean isDebugEnabled() {
+        return sDebug;
+    }
+
+    /**
+     * Writes the counters (and histograms, in debug mode) to the log.
+     * @return The same text written to the log.
+     */
+    public static synchronized String dump() {
+        StringBuilder text = new StringBuilder();
+        for (Stats stats : sStats.values()) text.append(stats).append('\n');
+        Log.i("UiTrace", text.toString());
+        return text.toString();
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public static synchronized void reset() {
+        sStats.clear();
+    }
+
+    private static synchronized void record(String name, long nanos) {
+        Stats stats = sStats.get(name);
+        if (stats == null) {
+            stats = new Stats(name);
+            sStats.put(name, stats);
+        }
+        stats.add(nanos, sDebug);
+    }
+
+    /**
+     * Counters of one section. The histogram buckets are powers of two in milliseconds:
+     * under 1ms, under 2ms, under 4ms... and 64ms or more.
+     */
+    private static class Stats {
+        Stats(String name) {
+            mName = name;
+        }
+
+        void add(long nanos, boolean histogram) {
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+            if (!histogram) return;
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < mBuckets.length - 1 && millis >= (1 << bucket)) bucket++;
+            mBuckets[bucket]++;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(mName);
+            text.append(": count=").append(mCount);
+            if (mCount > 0) text.append(" avg=").append(mTotalNanos / mCount / 1000).append("us");
+            text.append(" max=").append(mMaxNanos / 1000).append("us");
+            if (mName.equals(FRAME)) text.append(" dropped=").append(sDroppedFrames);
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (mBuckets[i] == 0) continue;
+                text.append(i < mBuckets.length - 1 ? " <" : " >=").append(1 << (i < mBuckets.length - 1 ? i : i - 1)).append("ms:").append(mBuckets[i]);
+            }
+            return text.toString();
+        }
+
+        private final String mName;
+        private int mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        private final int[] mBuckets = new int[HISTOGRAM_BUCKETS];
+    }
+
+    /**
+     * Measures the time between frames to count the dropped ones (those taking longer than a vsync).
+     */
+    private static class FrameMonitor implements Choreographer.FrameCallback {
+
+        static void start() {
+            sMonitor = new FrameMonitor();
+            Choreographer.getInstance().postFrameCallback(sMonitor);
+        }
+
+        static void stop() {
+            if (sMonitor != null) Choreographer.getInstance().removeFrameCallback(sMonitor);
+            sMonitor = null;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (sMonitor != this) return;
+            if (mLastFrameNanos != 0) {
+                long interval = frameTimeNanos - mLastFrameNanos;
+                // Long intervals are idle time (nothing to draw), not jank.
+                if (interval < IDLE_INTERVAL_NANOS) {
+                    record(FRAME, interval);
+                    int dropped = (int) (interval / FRAME_INTERVAL_NANOS) - 1;
+                    if (dropped > 0) sDroppedFrames += dropped;
+                }
+            }
+            mLastFrameNanos = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        private long mLastFrameNanos;
+        private static FrameMonitor sMonitor;
+        private static final long FRAME_INTERVAL_NANOS = 16666667;
+        private static final long IDLE_INTERVAL_NANOS = 1000000000;
+    }
+
+    private static final int HISTOGRAM_BUCKETS = 8;
+
+    private static volatile boolean sDebug;
+    private static volatile int sDroppedFrames;
+    private static final Map<String, Stats> sStats = new LinkedHashMap<>();
+
+    /** Start times and names of the sections open in each thread. */
+    private static final ThreadLocal<Deque<Long>> sStarts = new ThreadLocal<Deque<Long>>() {
+        @Override
+        protected Deque<Long> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+    private static final ThreadLocal<Deque<String>> sNames = new ThreadLocal<Deque<String>>() {
+        @Override
+        protected Deque<String> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    private UiTrace() {
+    }
+}
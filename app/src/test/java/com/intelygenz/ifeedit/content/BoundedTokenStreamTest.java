@@ -0,0 +1,95 @@
+package com.intelygenz.ifeedit.content;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Splitting of long tokens: the text must be the same, in tokens no longer than the limit.
+ */
+public class BoundedTokenStreamTest {
+
+    @Test
+    public void leavesShortDocumentsUnchanged() throws IOException {
+        String xml = "<?xml version=\"1.0\"?><!DOCTYPE rss [<!ENTITY a \"b\">]><rss a=\"<x>\"><!-- c -->"
+                + "<d><![CDATA[<p>e</p>]]></d>f &amp; g</rss>";
+        assertEquals(xml, filter(xml, "UTF-8"));
+    }
+
+    @Test
+    public void splitsLongText() throws IOException {
+        String text = repeat("Text &amp; more text. ", 2000);
+        String filtered = filter("<rss><d>" + text + "</d></rss>", "UTF-8");
+        assertSplit(filtered, "<![CDATA[]]>");
+        assertEquals("<rss><d>" + text + "</d></rss>", filtered.replace("<![CDATA[]]>", ""));
+        // Never in the middle of an entity.
+        assertTrue(!filtered.contains("&am<!") && !filtered.contains("&<!") && !filtered.contains("amp<!"));
+    }
+
+    @Test
+    public void splitsLongCdataSections() throws IOException {
+        String text = repeat("<p>Text ] in CDATA]]</p>", 2000);
+        String xml = "<rss><d><![CDATA[" + text.replace("]]<", "] ]<") + "]]></d></rss>";
+        String filtered = filter(xml, "UTF-8");
+        assertSplit(filtered, "]]><![CDATA[");
+        assertEquals(xml, filtered.replace("]]><![CDATA[", ""));
+    }
+
+    @Test
+    public void splitsBetweenCharacters() throws IOException {
+        String text = repeat("\u00e9\u4e2d\ud83d\ude00", 4000);
+        String filtered = filter("<rss><d><![CDATA[" + text + "]]></d>" + text + "</rss>", "UTF-8");
+        assertEquals("<rss><d><![CDATA[" + text + "]]></d>" + text + "</rss>",
+                filtered.replace("]]><![CDATA[", "").replace("<![CDATA[]]>", ""));
+    }
+
+    @Test
+    public void leavesMarkupAlone() throws IOException {
+        // Long attributes, comments and declarations are not text.
+        String value = repeat("v", 20000);
+        String xml = "<!DOCTYPE rss [<!ENTITY a \"" + value + "\">]><rss a=\"" + value + "\"><!--" + value + "--><b/></rss>";
+        assertEquals(xml, filter(xml, "UTF-8"));
+    }
+
+    @Test
+    public void passesUtf16Unchanged() throws IOException {
+        String xml = "<rss><d>" + repeat("Text ", 4000) + "</d></rss>";
+        assertEquals(xml, filter(xml, "UTF-16"));
+    }
+
+    private static void assertSplit(String filtered, String separator) {
+        int longest = 0;
+        int start = 0;
+        int index;
+        while ((index = filtered.indexOf(separator, start)) != -1) {
+            longest = Math.max(longest, index - start);
+            start = index + separator.length();
+        }
+        assertTrue("Not split", start > 0);
+        assertTrue("Token of " + longest, longest <= BoundedTokenStream.MAX_TOKEN_BYTES + 64);
+    }
+
+    /**
+     * Reads the document through the stream, in small reads of varying length.
+     */
+    private static String filter(String xml, String encoding) throws IOException {
+        InputStream in = new BoundedTokenStream(new ByteArrayInputStream(xml.getBytes(encoding)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        for (int i = 1; (read = in.read(buffer, 0, 1 + i % buffer.length)) != -1; i += 7) out.write(buffer, 0, read);
+        return out.toString(encoding);
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder repeated = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++) repeated.append(text);
+        return repeated.toString();
+    }
+}
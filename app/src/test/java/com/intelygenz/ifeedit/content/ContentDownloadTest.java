@@ -0,0 +1,208 @@
+package com.intelygenz.ifeedit.content;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.preference.PreferenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Whole syncs of generated feeds (see {@link SyntheticFeed}), against the throughput and latency budgets of the sync.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ContentDownloadTest {
+
+    /** Items stored per second at least, on a network with no delays. */
+    private static final int MIN_ITEMS_PER_SECOND = 50;
+
+    /** The first items of a sync are stored (and displayed) while the rest are still downloading, within this time at most. */
+    private static final long MAX_FIRST_ITEMS_MILLIS = 2000;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDatabase = new ItemStore(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void storesTheFeedWithItsImages() {
+        assertTrue(sync("synthetic://feed?items=50&description=4096&image=4000"));
+        assertEquals(50, count(null));
+        assertEquals(50, count(ItemStore.DB_COL_IMAGE_CONTENT + " IS NOT NULL"));
+        assertEquals(50, count("LENGTH(" + ItemStore.DB_COL_SUMMARY + ") BETWEEN 1 AND " + ItemSummary.MAX_LENGTH));
+    }
+
+    @Test
+    public void keepsLongDescriptionsWhole() {
+        // A single CDATA section of 1 MB per description, read a few KB at a time.
+        assertTrue(sync("synthetic://feed?items=3&description=1048576&cdata=1&image=0"));
+        assertEquals(3, count(ItemStore.DB_COL_BODY_FILE + " IS NOT NULL"));
+        Cursor cursor = mDatabase.get().query(ItemStore.DB_TABLE_NAME, new String[] { ItemStore.DB_COL_BODY_FILE }, null, null, null, null, null);
+        try {
+            ItemBodies bodies = new ItemBodies(mContext);
+            while (cursor.moveToNext()) {
+                String body = bodies.read(cursor.getString(0));
+                assertTrue(body != null && body.length() >= 1048576 - 8 && body.endsWith("</p>"));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void addsOnlyTheNewItems() {
+        assertTrue(sync("synthetic://feed?items=50&image=0"));
+        long newest = maxId();
+        // Ten items more in the same feed.
+        assertTrue(sync("synthetic://feed?items=50&image=0", new SyntheticFeed() {
+            @Override
+            public HttpURLConnection open(String url) throws IOException {
+                return super.open(url.startsWith("synthetic://feed") ? url + "&newest=60" : url);
+            }
+        }));
+        assertEquals(60, count(null));
+        assertEquals(10, count(ItemStore.DB_COL_ID + " > " + newest));
+    }
+
+    @Test
+    public void resumesPastTheItemsPerSyncLimit() {
+        // 200 items per sync at most: the next sync gets the rest, past the ones already stored.
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit().putString(RetentionPolicy.PREF_MAX_ITEMS_PER_FEED, "500").commit();
+        assertTrue(sync("synthetic://feed?items=250&image=0"));
+        assertEquals(200, count(null));
+        assertTrue(sync("synthetic://feed?items=250&image=0"));
+        assertEquals(250, count(null));
+    }
+
+    @Test
+    public void evictsTheOldestItemsOverTheSizeLimit() {
+        // About 2.4 MB of items for 1 MB.
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit().putString(RetentionPolicy.PREF_MAX_TOTAL_MB, "1").commit();
+        assertTrue(sync("synthetic://feed?items=100&description=4096&image=20000"));
+        long stored = new StoreCompaction(mDatabase, new ItemBodies(mContext), RetentionPolicy.fromPreferences(mContext)).getStoredBytes();
+        assertTrue("Stored " + stored + " bytes", stored <= 1024 * 1024 && stored > 1024 * 1024 - 64 * 1024);
+        assertTrue(count(null) < 100);
+        assertEquals(1, count(ItemStore.DB_COL_GUID + " = 'synthetic-100'"));
+    }
+
+    @Test
+    public void recognizesItemsIdentifiedByTheirLink() {
+        assertTrue(sync("synthetic://feed?items=50&image=0"));
+        // As left by version 5 of the database.
+        mDatabase.get().execSQL("UPDATE " + ItemStore.DB_TABLE_NAME + " SET " + ItemStore.DB_COL_GUID + " = " + ItemStore.DB_COL_LINK);
+        assertTrue(sync("synthetic://feed?items=50&image=0"));
+        assertEquals(50, count(null));
+    }
+
+    @Test
+    public void meetsTheThroughputBudget() {
+        long start = System.currentTimeMillis();
+        assertTrue(sync("synthetic://feed?items=200&description=2048&image=4000"));
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+        assertEquals(200, count(null));
+        long itemsPerSecond = 200 * 1000 / elapsed;
+        assertTrue("Synced " + itemsPerSecond + " items/s", itemsPerSecond >= MIN_ITEMS_PER_SECOND);
+    }
+
+    @Test
+    public void meetsTheFirstItemsLatencyBudget() throws InterruptedException {
+        // Every image takes a while: the whole sync takes seconds, the first items must not wait for it.
+        final long start = System.currentTimeMillis();
+        final AtomicLong firstStored = new AtomicLong();
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (count(null) == 0) Thread.sleep(10);
+                    firstStored.set(System.currentTimeMillis());
+                } catch (InterruptedException e) {
+                    // The sync ended with no items.
+                }
+            }
+        });
+        watcher.start();
+        try {
+            assertTrue(sync("synthetic://feed?items=100&image=2000&latency=30"));
+        } finally {
+            watcher.interrupt();
+            watcher.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        long firstItems = firstStored.get() - start;
+        assertTrue("No items stored", firstStored.get() != 0);
+        assertTrue("First items after " + firstItems + "ms", firstItems <= MAX_FIRST_ITEMS_MILLIS);
+        assertTrue("First items after " + firstItems + "ms of " + elapsed + "ms", firstItems < elapsed / 2);
+    }
+
+    @Test
+    public void failsOnServerErrors() {
+        assertTrue(!sync("synthetic://feed?items=10&errors=1"));
+        assertEquals(0, count(null));
+        // Retried later, and later again if it fails again.
+        assertEquals(1, failures("synthetic://feed?items=10&errors=1"));
+        assertTrue(!sync("synthetic://feed?items=10&errors=1"));
+        assertEquals(2, failures("synthetic://feed?items=10&errors=1"));
+    }
+
+    /**
+     * Runs a whole sync of the feed on an unmetered connection.
+     * @return Whether it succeeded.
+     */
+    private boolean sync(String url) {
+        return sync(url, new SyntheticFeed());
+    }
+
+    private boolean sync(String url, ConnectionFactory network) {
+        final boolean[] result = new boolean[2];
+        ContentDownload download = new ContentDownload();
+        download.setShowProgress(false);
+        download.setConnectionFactory(network);
+        download.setProfile(new SyncProfile(SyncProfile.UNMETERED, -1, 1024 * 1024, 15000, 10000));
+        download.generateContent(mContext, url, mDatabase, new ContentDownload.Listener() {
+            @Override
+            public void onContentReady(boolean success) {
+                result[0] = true;
+                result[1] = success;
+            }
+        });
+        // Tasks run right away in the tests.
+        assertTrue("Sync not finished", result[0]);
+        return result[1];
+    }
+
+    private long count(String selection) {
+        return DatabaseUtils.queryNumEntries(mDatabase.get(), ItemStore.DB_TABLE_NAME, selection);
+    }
+
+    private long failures(String url) {
+        return DatabaseUtils.longForQuery(mDatabase.get(), "SELECT " + ItemStore.FEEDS_COL_FAILURES + " FROM " + ItemStore.FEEDS_TABLE_NAME +
+                " WHERE " + ItemStore.FEEDS_COL_URL + " = ?", new String[] { url });
+    }
+
+    private long maxId() {
+        return DatabaseUtils.longForQuery(mDatabase.get(), "SELECT MAX(" + ItemStore.DB_COL_ID + ") FROM " + ItemStore.DB_TABLE_NAME, null);
+    }
+
+    private Context mContext;
+    private ItemStore mDatabase;
+}
@@ -0,0 +1,34 @@
+package com.intelygenz.ifeedit.content;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Days a feed asks not to be read on, see {@link FeedHints#addSkipDay}.
+ */
+public class FeedHintsTest {
+
+    @Test
+    public void readsDayNames() {
+        FeedHints hints = new FeedHints();
+        hints.addSkipDay("Saturday");
+        hints.addSkipDay(" sun ");
+        hints.addSkipDay("MONDAY");
+        assertEquals(1 << Calendar.SATURDAY | 1 << Calendar.SUNDAY | 1 << Calendar.MONDAY, hints.skipDays);
+    }
+
+    @Test
+    public void ignoresAnythingElse() {
+        FeedHints hints = new FeedHints();
+        hints.addSkipDay("");
+        hints.addSkipDay("   ");
+        hints.addSkipDay("s");
+        hints.addSkipDay("su");
+        hints.addSkipDay("sundays");
+        hints.addSkipDay("unm");
+        assertEquals(0, hints.skipDays);
+    }
+}
@@ -0,0 +1,26 @@
+package com.intelygenz.ifeedit.content;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Retries of the failed syncs, see {@link FeedScheduler#onSyncFailed}.
+ */
+public class FeedSchedulerTest {
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    @Test
+    public void retriesLaterAfterEveryFailure() {
+        assertEquals(15 * MINUTE_MILLIS, FeedScheduler.retryIntervalMillis(1));
+        assertEquals(30 * MINUTE_MILLIS, FeedScheduler.retryIntervalMillis(2));
+        assertEquals(60 * MINUTE_MILLIS, FeedScheduler.retryIntervalMillis(3));
+    }
+
+    @Test
+    public void retriesAtLeastOnceADay() {
+        assertEquals(24 * 60 * MINUTE_MILLIS, FeedScheduler.retryIntervalMillis(10));
+        assertEquals(24 * 60 * MINUTE_MILLIS, FeedScheduler.retryIntervalMillis(1000));
+    }
+}
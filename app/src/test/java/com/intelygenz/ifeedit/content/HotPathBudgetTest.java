@@ -0,0 +1,88 @@
+package com.intelygenz.ifeedit.content;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The budgets of the hot paths of a sync, measured on a generated feed (see {@link SyntheticFeed}).
+ * Budgets are the measured costs plus a margin of about a tenth, so one more parse or formatter per item
+ * fails them: lower them when a path gets cheaper, raise them only with the change that needs it. Allocations are measured on the JVM, with the
+ * SQLite of the tests, so they are far higher than on a device: they catch a path getting more expensive.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class HotPathBudgetTest {
+
+    /** Parsing an item (with a 4 KB description) only builds its strings: no queries, no inserts. */
+    private static final long PARSE_ITEM_MAX_BYTES = 56 * 1024;
+
+    /** Storing an item is one insert, no queries. */
+    private static final long STORE_ITEM_MAX_BYTES = 232 * 1024;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("No allocation measures in this JVM", ThreadAllocationMeter.isSupported());
+        HotPathBudget.reset();
+        HotPathBudget.setAllocationMeter(new ThreadAllocationMeter());
+        mDatabase = new ItemStore(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        HotPathBudget.setAllocationMeter(null);
+        if (mDatabase != null) mDatabase.close();
+    }
+
+    @Test
+    public void parsingAnItemStaysWithinItsBudget() {
+        sync("synthetic://feed?items=100&description=4096&image=0");
+        long[] totals = HotPathBudget.getTotals(HotPathBudget.PARSE_ITEM);
+        assertNotNull(totals);
+        assertEquals(100, totals[HotPathBudget.UNITS]);
+        assertEquals(0, totals[HotPathBudget.QUERIES]);
+        assertEquals(0, totals[HotPathBudget.INSERTS]);
+        assertWithin("Parsed item", totals[HotPathBudget.ALLOCATED_BYTES] / totals[HotPathBudget.UNITS], PARSE_ITEM_MAX_BYTES);
+    }
+
+    @Test
+    public void storingAnItemStaysWithinItsBudget() {
+        sync("synthetic://feed?items=100&description=4096&image=0");
+        long[] totals = HotPathBudget.getTotals(HotPathBudget.STORE_ITEM);
+        assertNotNull(totals);
+        assertEquals(100, totals[HotPathBudget.UNITS]);
+        assertEquals(0, totals[HotPathBudget.QUERIES]);
+        assertEquals(100, totals[HotPathBudget.INSERTS]);
+        assertWithin("Stored item", totals[HotPathBudget.ALLOCATED_BYTES] / totals[HotPathBudget.UNITS], STORE_ITEM_MAX_BYTES);
+    }
+
+    private void assertWithin(String operation, long bytes, long maxBytes) {
+        assertTrue(operation + " allocated " + bytes + " bytes (budget " + maxBytes + ")", bytes > 0 && bytes <= maxBytes);
+    }
+
+    private void sync(String url) {
+        final boolean[] success = new boolean[1];
+        ContentDownload download = new ContentDownload();
+        download.setShowProgress(false);
+        download.setConnectionFactory(new SyntheticFeed());
+        download.setProfile(new SyncProfile(SyncProfile.UNMETERED, -1, 1024 * 1024, 15000, 10000));
+        download.generateContent(RuntimeEnvironment.application, url, mDatabase, new ContentDownload.Listener() {
+            @Override
+            public void onContentReady(boolean result) {
+                success[0] = result;
+            }
+        });
+        assertTrue(success[0]);
+    }
+
+    private ItemStore mDatabase;
+}
@@ -0,0 +1,31 @@
+package com.intelygenz.ifeedit.content;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The image of an item taken from its description, when the feed gives none.
+ */
+public class HtmlSanitizerTest {
+
+    @Test
+    public void findsTheFirstImage() {
+        assertEquals("http://example.com/a.jpg", HtmlSanitizer.findImage("<p>Text</p><img src=\"http://example.com/a.jpg\"><img src='b.png'>"));
+        assertEquals("http://example.com/a", HtmlSanitizer.findImage("<IMG alt=\"a\" SRC=http://example.com/a>"));
+    }
+
+    @Test
+    public void skipsTrackingPixels() {
+        assertEquals("b.png", HtmlSanitizer.findImage("<img src=\"a.gif\" width=\"1\" height=\"1\"><img src=\"b.png\">"));
+    }
+
+    @Test
+    public void findsNothingWithoutImages() {
+        assertNull(HtmlSanitizer.findImage(null));
+        assertNull(HtmlSanitizer.findImage("<p>No src=\"here\"</p>"));
+        assertNull(HtmlSanitizer.findImage("<img alt=\"no source\">"));
+        assertNull(HtmlSanitizer.findImage("<img src=\"unterminated.jpg"));
+    }
+}
@@ -0,0 +1,40 @@
+package com.intelygenz.ifeedit.content;
+
+import android.net.ConnectivityManager;
+import android.telephony.TelephonyManager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The kind of connection each network gets its profile for.
+ */
+public class SyncProfileTest {
+
+    @Test
+    public void unmeteredNetworksDownloadEverything() {
+        assertEquals(SyncProfile.UNMETERED, SyncProfile.select(true, ConnectivityManager.TYPE_WIFI, -1, false));
+        assertEquals(SyncProfile.UNMETERED, SyncProfile.select(true, ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE, false));
+    }
+
+    @Test
+    public void meteredNetworksAreLimited() {
+        assertEquals(SyncProfile.METERED, SyncProfile.select(true, ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE, true));
+        assertEquals(SyncProfile.METERED, SyncProfile.select(true, ConnectivityManager.TYPE_WIFI, -1, true));
+    }
+
+    @Test
+    public void twoGNetworksAreSlow() {
+        assertEquals(SyncProfile.SLOW, SyncProfile.select(true, ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_EDGE, true));
+        assertEquals(SyncProfile.SLOW, SyncProfile.select(true, ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_GPRS, false));
+        // Only mobile subtypes mean 2G.
+        assertEquals(SyncProfile.UNMETERED, SyncProfile.select(true, ConnectivityManager.TYPE_WIFI, TelephonyManager.NETWORK_TYPE_EDGE, false));
+    }
+
+    @Test
+    public void disconnectedIsMetered() {
+        assertEquals(SyncProfile.METERED, SyncProfile.select(false, -1, -1, false));
+        assertEquals(SyncProfile.METERED, SyncProfile.select(false, ConnectivityManager.TYPE_WIFI, -1, false));
+    }
+}
@@ -0,0 +1,240 @@
+package com.intelygenz.ifeedit.content;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Stand-in for the network serving generated feeds and images, to load test the sync offline.
+ * Used as the feed URL by the sync tests, e.g.
+ * "synthetic://feed?items=500&description=4096&image=20000&latency=200&kbps=256&errors=0.05".
+ * <ul>
+ * <li>items: number of items in the feed (100).</li>
+ * <li>newest: number of the newest item (same as items), raise it to simulate new items.</li>
+ * <li>description: size in bytes of each description (2048).</li>
+ * <li>cdata: 1 to put the descriptions in CDATA sections rather than escaping them (0).</li>
+ * <li>image: size in bytes of each item image, 0 for no images (20000).</li>
+ * <li>latency: milliseconds before a response starts (0).</li>
+ * <li>kbps: bandwidth of every response in KB/s, 0 for unlimited (0).</li>
+ * <li>errors: probability of a request failing with a server error (0).</li>
+ * </ul>
+ * Images share the network parameters of their feed. Any other URL goes to the real network.
+ */
+public class SyntheticFeed implements ConnectionFactory {
+
+    public static final String SCHEME = "synthetic";
+
+    /**
+     * @return Whether the URL is served by this stand-in.
+     */
+    public static boolean handles(String url) {
+        return url != null && url.startsWith(SCHEME + "://");
+    }
+
+    @Override
+    public HttpURLConnection open(String url) throws IOException {
+        if (!handles(url)) return NETWORK.open(url);
+        return new Connection(Uri.parse(url));
+    }
+
+    /**
+     * Generates the feed XML: items newest first, one hour apart.
+     */
+    static byte[] generateFeed(Uri uri) throws UnsupportedEncodingException {
+        int items = intParameter(uri, "items", 100);
+        int newest = intParameter(uri, "newest", items);
+        int descriptionSize = intParameter(uri, "description", 2048);
+        boolean cdata = intParameter(uri, "cdata", 0) == 1;
+        int imageSize = intParameter(uri, "image", 20000);
+        SimpleDateFormat formatter = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z", Locale.US);
+        long now = System.currentTimeMillis();
+
+        StringBuilder xml = new StringBuilder(items * (descriptionSize + 400));
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rss version=\"2.0\"><channel>");
+        xml.append("<title>Synthetic feed</title><link>http://example.com/</link><ttl>60</ttl>");
+        for (int n = newest; n > newest - items && n > 0; n--) {
+            xml.append("<item>");
+            xml.append("<title>Synthetic item ").append(n).append("</title>");
+            xml.append("<link>http://example.com/items/").append(n).append("</link>");
+            xml.append("<guid>synthetic-").append(n).append("</guid>");
+            xml.append("<pubDate>").append(formatter.format(new Date(now - (newest - n) * HOUR_MILLIS))).append("</pubDate>");
+            if (imageSize > 0) {
+                Uri image = uri.buildUpon().authority("image").appendQueryParameter("n", String.valueOf(n)).build();
+                xml.append("<image><url>").append(escape(image.toString())).append("</url></image>");
+            }
+            if (cdata) xml.append("<description><![CDATA[").append(description(n, descriptionSize)).append("]]></description>");
+            else xml.append("<description>").append(escape(description(n, descriptionSize))).append("</description>");
+            xml.append("</item>");
+        }
+        xml.append("</channel></rss>");
+        return xml.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Generates an image of the given size: a small real JPEG, padded after its end.
+     */
+    static byte[] generateImage(Uri uri) {
+        int size = intParameter(uri, "image", 20000);
+        int n = intParameter(uri, "n", 0);
+        Bitmap bitmap = Bitmap.createBitmap(IMAGE_PIXELS, IMAGE_PIXELS, Bitmap.Config.RGB_565);
+        bitmap.eraseColor(Color.HSVToColor(new float[] { (n * 37) % 360, 0.6f, 0.8f }));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 80, out);
+        bitmap.recycle();
+        while (out.size() < size) out.write(0);
+        return out.toByteArray();
+    }
+
+    private static String description(int n, int size) {
+        StringBuilder text = new StringBuilder(size);
+        text.append("<p>Synthetic item ").append(n).append("</p><p>");
+        Random random = new Random(n);
+        while (text.length() < size - 4) text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        text.append("</p>");
+        return text.toString();
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static int intParameter(Uri uri, String name, int defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static float floatParameter(Uri uri, String name, float defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) return defaultValue;
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A response generated in memory, delayed and throttled as configured.
+     */
+    private static class Connection extends HttpURLConnection {
+
+        Connection(Uri uri) throws IOException {
+            super(new URL("http://" + SCHEME + "/" + uri.getAuthority()));
+            mUri = uri;
+            mLatencyMillis = intParameter(uri, "latency", 0);
+            mBytesPerSecond = intParameter(uri, "kbps", 0) * 1024;
+            mFailed = sRandom.nextFloat() < floatParameter(uri, "errors", 0);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (connected) return;
+            sleep(mLatencyMillis);
+            if (mDisconnected) throw new InterruptedIOException("Disconnected");
+            if (!mFailed) mContent = "image".equals(mUri.getAuthority()) ? generateImage(mUri) : generateFeed(mUri);
+            connected = true;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            connect();
+            return mFailed ? HTTP_UNAVAILABLE : HTTP_OK;
+        }
+
+        @Override
+        public int getContentLength() {
+            try {
+                connect();
+            } catch (IOException e) {
+                return -1;
+            }
+            return mContent != null ? mContent.length : -1;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            if (mFailed) throw new IOException("Synthetic server error for " + mUri);
+            return new ThrottledStream(mContent);
+        }
+
+        @Override
+        public void disconnect() {
+            mDisconnected = true;
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        private void sleep(long millis) throws InterruptedIOException {
+            if (millis <= 0) return;
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+
+        /**
+         * Delivers the content at the configured bandwidth, and fails once disconnected.
+         */
+        private class ThrottledStream extends FilterInputStream {
+            ThrottledStream(byte[] content) {
+                super(new ByteArrayInputStream(content));
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (mDisconnected) throw new InterruptedIOException("Disconnected");
+                if (mBytesPerSecond > 0 && available() > 0) {
+                    length = Math.min(length, CHUNK_SIZE);
+                    sleep(length * 1000L / mBytesPerSecond);
+                }
+                return super.read(buffer, offset, length);
+            }
+        }
+
+        private final Uri mUri;
+        private final int mLatencyMillis;
+        private final int mBytesPerSecond;
+        private final boolean mFailed;
+        private byte[] mContent;
+        private volatile boolean mDisconnected;
+    }
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+    private static final int IMAGE_PIXELS = 64;
+    private static final int CHUNK_SIZE = 1024;
+    private static final Random sRandom = new Random();
+    private static final String[] WORDS = new String[] {
+            "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do",
+            "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua"
+    };
+}
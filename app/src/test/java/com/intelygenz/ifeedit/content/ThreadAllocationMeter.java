@@ -0,0 +1,37 @@
+package com.intelygenz.ifeedit.content;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the allocations of the current thread with the extension of the HotSpot JVMs.
+ * Tests of the allocation budgets are skipped where it is not available, see {@link #isSupported()}.
+ */
+public class ThreadAllocationMeter implements HotPathBudget.AllocationMeter {
+
+    /**
+     * @return Whether this JVM measures the allocations of each thread.
+     */
+    public static boolean isSupported() {
+        try {
+            Class<?> extension = Class.forName("com.sun.management.ThreadMXBean");
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            return extension.isInstance(threads) && isEnabled(threads);
+        } catch (ClassNotFoundException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Only called once the extension is known to be there.
+     */
+    private static boolean isEnabled(ThreadMXBean threads) {
+        com.sun.management.ThreadMXBean extension = (com.sun.management.ThreadMXBean) threads;
+        return extension.isThreadAllocatedMemorySupported() && extension.isThreadAllocatedMemoryEnabled();
+    }
+}
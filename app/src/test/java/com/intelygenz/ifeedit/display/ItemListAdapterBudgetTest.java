@@ -0,0 +1,210 @@
+package com.intelygenz.ifeedit.display;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.intelygenz.ifeedit.R;
+import com.intelygenz.ifeedit.content.ContentDownload;
+import com.intelygenz.ifeedit.content.HotPathBudget;
+import com.intelygenz.ifeedit.content.ItemProvider;
+import com.intelygenz.ifeedit.content.ItemStateStore;
+import com.intelygenz.ifeedit.content.ItemStore;
+import com.intelygenz.ifeedit.content.SyncProfile;
+import com.intelygenz.ifeedit.content.SyntheticFeed;
+import com.intelygenz.ifeedit.content.ThreadAllocationMeter;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import static org.robolectric.Shadows.shadowOf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The budget of binding a list row, the hot path of scrolling, measured on the rows of a generated feed.
+ * See {@link com.intelygenz.ifeedit.content.HotPathBudgetTest} for how budgets are set.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ItemListAdapterBudgetTest {
+
+    /** Binding a row the first time parses its title: no queries, the row is already in the cursor. */
+    private static final long BIND_MAX_BYTES = 26 * 1024;
+
+    /** Binding it again reuses the parsed title: little more than the image request. */
+    private static final long REBIND_MAX_BYTES = 256;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("No allocation measures in this JVM", ThreadAllocationMeter.isSupported());
+        mContext = RuntimeEnvironment.application;
+        // The memory of a phone, so the row texts are cached as they are there (the cache registry is created once).
+        shadowOf((ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE)).setMemoryClass(MEMORY_CLASS_MB);
+        mDatabase = new ItemStore(mContext);
+        sync("synthetic://feed?items=" + ROWS + "&description=4096&image=4000");
+
+        ItemProvider provider = new ItemProvider();
+        provider.attachInfo(mContext, null);
+        ShadowContentResolver.registerProvider(ItemProvider.AUTHORITY, provider);
+        mContent = ItemListContent.load(mContext.getContentResolver());
+        assertEquals(ROWS, mContent.allPositions().length);
+
+        // Classes loaded and code warmed up by another adapter, so only the binds themselves are measured.
+        ItemListAdapter warmUp = newAdapter();
+        bindAll(warmUp, newHolder(warmUp), 1);
+        warmUp.release();
+        HotPathBudget.reset();
+        HotPathBudget.setAllocationMeter(new ThreadAllocationMeter());
+    }
+
+    @After
+    public void tearDown() {
+        HotPathBudget.setAllocationMeter(null);
+        if (mContent != null) mContent.close();
+        if (mDatabase != null) mDatabase.close();
+    }
+
+    @Test
+    public void bindingARowStaysWithinItsBudget() {
+        ItemListAdapter adapter = newAdapter();
+        bindAll(adapter, newHolder(adapter), 1);
+        adapter.release();
+        assertWithin("Bound row", BIND_MAX_BYTES);
+    }
+
+    @Test
+    public void rebindingARowStaysWithinItsBudget() {
+        ItemListAdapter adapter = newAdapter();
+        ItemListAdapter.ViewHolder holder = newHolder(adapter);
+        bindAll(adapter, holder, 1);
+        HotPathBudget.reset();
+        bindAll(adapter, holder, 3);
+        adapter.release();
+        assertWithin("Rebound row", REBIND_MAX_BYTES);
+    }
+
+    private void assertWithin(String operation, long maxBytes) {
+        long[] totals = HotPathBudget.getTotals(HotPathBudget.LIST_BIND);
+        assertNotNull(totals);
+        assertTrue(totals[HotPathBudget.UNITS] >= ROWS);
+        assertEquals(0, totals[HotPathBudget.QUERIES]);
+        assertEquals(0, totals[HotPathBudget.INSERTS]);
+        long bytes = totals[HotPathBudget.ALLOCATED_BYTES] / totals[HotPathBudget.UNITS];
+        assertTrue(operation + " allocated " + bytes + " bytes (budget " + maxBytes + ")", bytes <= maxBytes);
+    }
+
+    private ItemListAdapter newAdapter() {
+        ItemListAdapter adapter = new ItemListAdapter(mContext, null, ItemStateStore.getInstance(mContext));
+        adapter.swapContent(mContent, mContent.allPositions());
+        return adapter;
+    }
+
+    /**
+     * A row with the views of the entry layout, built by hand: the tests have no resources to inflate it.
+     * The views ignore what they are given, so only the cost of the adapter is measured
+     * (the framework under Robolectric allocates far more than the adapter, and more at every call).
+     */
+    private ItemListAdapter.ViewHolder newHolder(ItemListAdapter adapter) {
+        FrameLayout row = new FrameLayout(mContext);
+        row.addView(newView(new RowImageView(mContext), R.id.entry_image), ViewGroup.LayoutParams.MATCH_PARENT, 200);
+        row.addView(newView(new RowImageView(mContext), R.id.entry_star));
+        row.addView(newView(new RowTextView(mContext), R.id.entry_summary));
+        row.addView(newView(new RowTextView(mContext), R.id.entry_title));
+        return adapter.new ViewHolder(row);
+    }
+
+    private static <T extends View> T newView(T view, int id) {
+        view.setId(id);
+        return view;
+    }
+
+    /**
+     * Binds the same row holder to every row, as scrolling the list does.
+     */
+    private static void bindAll(ItemListAdapter adapter, ItemListAdapter.ViewHolder holder, int times) {
+        for (int i = 0; i < times; i++) {
+            for (int position = 0; position < adapter.getItemCount(); position++) {
+                adapter.onBindViewHolder(holder, position);
+                adapter.onViewRecycled(holder);
+            }
+        }
+    }
+
+    private void sync(String url) {
+        final boolean[] success = new boolean[1];
+        ContentDownload download = new ContentDownload();
+        download.setShowProgress(false);
+        download.setConnectionFactory(new SyntheticFeed());
+        download.setProfile(new SyncProfile(SyncProfile.UNMETERED, -1, 1024 * 1024, 15000, 10000));
+        download.generateContent(mContext, url, mDatabase, new ContentDownload.Listener() {
+            @Override
+            public void onContentReady(boolean result) {
+                success[0] = result;
+            }
+        });
+        assertTrue(success[0]);
+    }
+
+    private static class RowTextView extends TextView {
+        RowTextView(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void setText(CharSequence text, BufferType type) {
+        }
+
+        @Override
+        public void setAlpha(float alpha) {
+        }
+    }
+
+    private static class RowImageView extends ImageView {
+        RowImageView(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void setImageDrawable(Drawable drawable) {
+        }
+
+        @Override
+        public void setImageBitmap(Bitmap bitmap) {
+        }
+
+        @Override
+        public void setImageResource(int resId) {
+        }
+
+        @Override
+        public void setVisibility(int visibility) {
+        }
+
+        @Override
+        public void invalidate() {
+        }
+    }
+
+    private static final int ROWS = 100;
+    private static final int MEMORY_CLASS_MB = 64;
+
+    private Context mContext;
+    private ItemStore mDatabase;
+    private ItemListContent mContent;
+}